@@ -11,14 +11,22 @@
 package com.shuewe.markerhandler;
 
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
 import android.util.DisplayMetrics;
+import android.view.View;
 
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.VisibleRegion;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -39,6 +47,37 @@ public class HandlerGoogle extends A_Handler<Projection, GoogleMap, Marker, com.
         put(A_MapMarker.COLOR.YELLOW, R.drawable.marker_yellow);
     }};
 
+    /**
+     * Projection of the last update, computed without the SDK so it can be used on the update thread.
+     */
+    private MercatorProjection m_mercatorProjection;
+
+    /**
+     * Size of the map view at the last update request, read on UI thread.
+     */
+    private volatile float m_viewWidth, m_viewHeight;
+
+    /**
+     * View of the map, to read its size. Null if the handler was initialized without the view.
+     */
+    private View m_mapView;
+
+    /**
+     * Scaled marker icons by color and scale, see getIconKey. Cleared when the marker size factor changes. Only used on UI
+     * thread.
+     */
+    private final Map<Long, BitmapDescriptor> m_iconCache = new HashMap<>();
+
+    /**
+     * Maximal number of hidden marker kept for reuse.
+     */
+    private static final int MAX_POOL_SIZE = 200;
+
+    /**
+     * Removed marker, hidden and kept for reuse by new clusters. Only used on UI thread.
+     */
+    private final List<Marker> m_markerPool = new ArrayList<>();
+
     @Override
     public boolean onMarkerClick(Marker marker) {
         for(A_Handler h:listener){
@@ -54,6 +93,61 @@ public class HandlerGoogle extends A_Handler<Projection, GoogleMap, Marker, com.
 
 
 
+    @Override
+    public void setMarkerSizeFactor(double factor) {
+        super.setMarkerSizeFactor(factor);
+        m_iconCache.clear();
+    }
+
+    @Override
+    public void addColor(A_MapMarker.COLOR c, Integer draw) {
+        super.addColor(c, draw);
+        m_iconCache.clear();
+    }
+
+    /**
+     * Removes the hidden marker of the pool and the cached icons too. Call it on UI thread.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            clearMarkerPool();
+            m_iconCache.clear();
+        }
+    }
+
+    /**
+     * Gets the scaled icon for a marker color. Icons are decoded and scaled only once and then taken from the cache.
+     *
+     * @param c     color of the marker
+     * @param scale of the icon, without the marker size factor
+     * @return BitmapDescriptor of the icon
+     */
+    BitmapDescriptor getIcon(A_MapMarker.COLOR c, double scale) {
+        double factor = getMarkerSizeFactor();
+        long key = getIconKey(c, scale);
+        BitmapDescriptor icon = m_iconCache.get(key);
+        if (icon == null) {
+            Bitmap b = BitmapFactory.decodeResource(getContext().getResources(), COLOR_MAP.get(c));
+            Bitmap scaledBitmap = Bitmap.createScaledBitmap(b, (int) (b.getWidth() * scale * factor), (int) (b.getHeight() * scale * factor), false);
+            icon = BitmapDescriptorFactory.fromBitmap(scaledBitmap);
+            m_iconCache.put(key, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Packs color and scale of an icon into a key of the icon cache, without building a string for every lookup.
+     *
+     * @param c     color of the marker
+     * @param scale of the icon, without the marker size factor
+     * @return key with the color in the upper and the scale as float bits in the lower half
+     */
+    private static long getIconKey(A_MapMarker.COLOR c, double scale) {
+        return ((long) c.ordinal() << 32) | (Float.floatToIntBits((float) scale) & 0xffffffffL);
+    }
+
     @Override
     protected void updateSingleMarker(GoogleMap map, A_MapMarker marker) {
         marker.updateMarker();
@@ -75,18 +169,64 @@ public class HandlerGoogle extends A_Handler<Projection, GoogleMap, Marker, com.
         super(elements, metrics);
     }
 
+    /**
+     * Initializes the handler with the view of the map, e.g. the view of the SupportMapFragment. The size of the map
+     * view is needed to compute the pixel positions of the marker.
+     *
+     * @param context Activity context
+     * @param map     instance
+     * @param mapView view showing the map
+     */
+    public void init(Context context, GoogleMap map, View mapView) {
+        m_mapView = mapView;
+        init(context, map);
+    }
+
+    /**
+     * Hides the marker and keeps it for reuse, see obtainMarker. Marker exceeding the pool size are removed.
+     * The marker object gets detached from the marker, so the old marker object can't change the reused marker. Marker
+     * without known marker object are not reused.
+     */
     @Override
     public void removeMarker(Marker marker) {
         if (marker != null) {
-            m_markerOnMap.remove(marker);
+            A_MapMarker owner = m_markerOnMap.remove(marker);
+            if (owner != null && owner.m_marker == marker) {
+                owner.m_marker = null;
+            }
+            if (owner != null && m_markerPool.size() < MAX_POOL_SIZE) {
+                marker.hideInfoWindow();
+                marker.setVisible(false);
+                m_markerPool.add(marker);
+            } else {
+                marker.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets a hidden marker from the pool.
+     *
+     * @return marker to be moved and shown, null if the pool is empty
+     */
+    Marker obtainMarker() {
+        return m_markerPool.isEmpty() ? null : m_markerPool.remove(m_markerPool.size() - 1);
+    }
+
+    /**
+     * Removes all hidden marker of the pool from the map.
+     */
+    public void clearMarkerPool() {
+        for (Marker marker : m_markerPool) {
             marker.remove();
         }
+        m_markerPool.clear();
     }
 
     @Override
     public void showCurrentSortableMarker() {
-        if (m_markerMap.containsKey(getSortableElement())) {
-            Marker marker = ((MapMarkerGoogle) m_markerMap.get(getSortableElement())).getMarker();
+        if (getMarkerOfElement(getSortableElement()) != null) {
+            Marker marker = ((MapMarkerGoogle) getMarkerOfElement(getSortableElement())).getMarker();
             setSnippet(marker);
             marker.showInfoWindow();
             m_map.moveCamera(CameraUpdateFactory.newLatLng(marker.getPosition()));
@@ -96,19 +236,56 @@ public class HandlerGoogle extends A_Handler<Projection, GoogleMap, Marker, com.
         m_map.moveCamera(CameraUpdateFactory.newLatLng(new LatLngGoogleWrapper(getSortableElement().getLatLng()).toOtherLatLng()));
     }
 
+    /**
+     * Reads the size of the map view on the UI thread. If the handler was initialized without the view, the size is
+     * estimated from the corners of the visible region, which is only correct without bearing and tilt.
+     */
     @Override
-    protected A_MapMarker getMarkerInstance() {
-        return new MapMarkerGoogle(this, m_textGenerator);
+    public void updateMarkerOnMap(final Projection projection, final float zoom) {
+        if (m_mapView != null) {
+            m_viewWidth = m_mapView.getWidth();
+            m_viewHeight = m_mapView.getHeight();
+        } else {
+            VisibleRegion region = projection.getVisibleRegion();
+            Point farRight = projection.toScreenLocation(region.farRight);
+            Point nearLeft = projection.toScreenLocation(region.nearLeft);
+            m_viewWidth = farRight.x - nearLeft.x;
+            m_viewHeight = nearLeft.y - farRight.y;
+        }
+        super.updateMarkerOnMap(projection, zoom);
     }
 
-    protected boolean isInRegion(LatLngBounds bounds, LatLng place){
-        return bounds.contains(new LatLngGoogleWrapper(place).toOtherLatLng());
+    @Override
+    protected void updateMap(Projection projection, LatLngBounds bounds, float zoom) {
+        m_mercatorProjection = new MercatorProjection(m_viewWidth, m_viewHeight,
+                new LatLng(bounds.northeast.latitude, bounds.southwest.longitude), new LatLng(bounds.southwest.latitude, bounds.northeast.longitude));
+        super.updateMap(projection, bounds, zoom);
+    }
+
+    /**
+     * Gets the projection of the last update.
+     *
+     * @return MercatorProjection
+     */
+    public MercatorProjection getMercatorProjection() {
+        return m_mercatorProjection;
+    }
+
+    @Override
+    protected A_MapMarker getMarkerInstance() {
+        return new MapMarkerGoogle(this, m_textGenerator);
     }
 
     protected LatLngBounds getVisibleRegion(Projection projection){
         return projection.getVisibleRegion().latLngBounds;
     }
 
+    @Override
+    protected com.shuewe.markerhandler.LatLngBounds toLatLngBounds(LatLngBounds bounds) {
+        return new com.shuewe.markerhandler.LatLngBounds(new LatLng(bounds.northeast.latitude, bounds.southwest.longitude),
+                new LatLng(bounds.southwest.latitude, bounds.northeast.longitude));
+    }
+
     /**
      * Sets the snippet and title of a marker.
      *
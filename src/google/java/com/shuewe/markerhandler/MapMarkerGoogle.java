@@ -10,14 +10,10 @@
 
 package com.shuewe.markerhandler;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Point;
 
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.Projection;
 import com.google.android.gms.maps.model.BitmapDescriptor;
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 
@@ -48,42 +44,78 @@ public class MapMarkerGoogle extends A_MapMarker<Marker, GoogleMap, Projection,
     }
 
     @Override
-    protected double getPixelDistance(LatLng pos2, Projection projection) {
-        Point p1 = projection.toScreenLocation(new LatLngGoogleWrapper(this.m_center).toOtherLatLng());
-        Point p2 = projection.toScreenLocation(new LatLngGoogleWrapper(pos2).toOtherLatLng());
-        return Math.sqrt((p1.x - p2.x) * (p1.x - p2.x) + (p1.y - p2.y) * (p1.y - p2.y));
+    protected void getPixelPosition(double latitude, double longitude, Projection projection, double[] out) {
+        MercatorProjection p = ((HandlerGoogle) m_handler).getMercatorProjection();
+        out[0] = p.getPixelX(MercatorProjection.getNormalizedX(longitude));
+        out[1] = p.getPixelY(MercatorProjection.getNormalizedY(latitude));
+    }
+
+    @Override
+    protected void getPixelPosition(int handle, Projection projection, double[] out) {
+        MercatorProjection p = ((HandlerGoogle) m_handler).getMercatorProjection();
+        ElementStore store = m_handler.getStore();
+        out[0] = p.getPixelX(store.getX(handle));
+        out[1] = p.getPixelY(store.getY(handle));
+    }
+
+    @Override
+    protected void getPixelPositions(IntList handles, Projection projection, double[] out) {
+        m_handler.getStore().project(((HandlerGoogle) m_handler).getMercatorProjection(), handles, out);
+    }
+
+    @Override
+    protected void getCenterPixelPosition(Projection projection, double[] out) {
+        MercatorProjection p = ((HandlerGoogle) m_handler).getMercatorProjection();
+        out[0] = p.getPixelX(m_centerX);
+        out[1] = p.getPixelY(m_centerY);
     }
 
     @Override
     public Marker setMarker(GoogleMap map, COLOR c) {
         m_isTouched = false;
-        if (m_marker != null) {
-            m_handler.m_markerOnMap.remove(m_marker);
-            m_marker.remove();
-        }
-        MarkerOptions options=new MarkerOptions().position(new LatLngGoogleWrapper(m_center).toOtherLatLng()).icon(getScaledIcon(c,m_scale*m_handler.getMarkerSizeFactor()));
         setColor(c);
-        if(m_textGenerator.getMarkerTitle(getElements(),m_cursor)!=null){
-            options=options.title(m_textGenerator.getMarkerTitle(getElements(),m_cursor)).snippet(m_textGenerator.getMarkerDescription(getElements(),m_cursor));
+        if (m_marker == null) {
+            m_marker = ((HandlerGoogle) m_handler).obtainMarker();
+        }
+        if (m_marker != null) {
+            //Move existing or recycled marker instead of creating a new one
+            m_marker.setPosition(new LatLngGoogleWrapper(m_center).toOtherLatLng());
+            m_marker.setIcon(getScaledIcon(c));
+            String title = m_textGenerator.getMarkerTitle(getElements(), m_cursor);
+            m_marker.setTitle(title);
+            m_marker.setSnippet(title != null ? m_textGenerator.getMarkerDescription(getElements(), m_cursor) : null);
+            m_marker.setVisible(true);
+        } else {
+            MarkerOptions options = new MarkerOptions().position(new LatLngGoogleWrapper(m_center).toOtherLatLng()).icon(getScaledIcon(c));
+            if (m_textGenerator.getMarkerTitle(getElements(), m_cursor) != null) {
+                options = options.title(m_textGenerator.getMarkerTitle(getElements(), m_cursor)).snippet(m_textGenerator.getMarkerDescription(getElements(), m_cursor));
+            }
+            m_marker = map.addMarker(options);
         }
-        m_marker = map.addMarker(options);
         m_handler.m_markerOnMap.put(m_marker, this);
         return m_marker;
     }
 
-    private BitmapDescriptor getScaledIcon(COLOR c, double scale) {
-        Bitmap b = BitmapFactory.decodeResource(m_handler.getContext().getResources(), (Integer) m_handler.getColorMap().get(c));
-        Bitmap scaledBitmap = Bitmap.createScaledBitmap(b, (int)(b.getWidth()*scale), (int)(b.getHeight()*scale), false);
-        return BitmapDescriptorFactory.fromBitmap(scaledBitmap);
+    /**
+     * Gets the icon of the marker from the cache of the handler.
+     *
+     * @param c color of the marker
+     * @return scaled icon
+     */
+    private BitmapDescriptor getScaledIcon(COLOR c) {
+        return ((HandlerGoogle) m_handler).getIcon(c, m_scale);
     }
 
     @Override
     protected void updateMarker() {
-
-        if (m_marker != null && m_textGenerator.getMarkerTitle(getElements(),m_cursor)!=null) {
+        if (m_marker == null) {
+            //Removed from map, the marker object might be reused by another marker
+            return;
+        }
+        if (m_textGenerator.getMarkerTitle(getElements(),m_cursor)!=null) {
             m_marker.setTitle(m_textGenerator.getMarkerTitle(getElements(),m_cursor));
             m_marker.setSnippet(m_textGenerator.getMarkerDescription(getElements(),m_cursor));
         }
-        m_marker.setIcon(getScaledIcon(getColor(),m_scale*m_handler.getMarkerSizeFactor()));
+        m_marker.setIcon(getScaledIcon(getColor()));
     }
 }
@@ -11,21 +11,28 @@
 package com.shuewe.markerhandler;
 
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Color;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.TypedValue;
+import android.view.Choreographer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Abstract class for marker handler objects.
@@ -83,8 +90,6 @@ public abstract class A_Handler<T, U, V, W, X> {
      */
     protected A_MapMarker.COLOR m_defaultColor=A_MapMarker.COLOR.BLUE;
 
-    private W m_queueBounds;
-
     private List<OnChangedMapListener> m_mapChangedListener=new ArrayList<OnChangedMapListener>();
 
     /**
@@ -117,13 +122,18 @@ public abstract class A_Handler<T, U, V, W, X> {
      */
     protected List<Integer> m_elementPositionsOnMap;
     /**
-     * all element data.
+     * all element data passed to the constructor. Elements added later by addElements are only in m_store.
      */
     protected List<? extends I_SortableMapElement> m_elements;
     /**
-     * visible elements.
+     * Positions of all elements in primitive arrays, the handle of an element is its position in m_elements, elements
+     * added later are appended.
+     */
+    protected ElementStore m_store;
+    /**
+     * Marker of each element (index is the handle of the element), null if element is not on the map.
      */
-    protected Set<I_SortableMapElement> m_elements_notOnMap=new HashSet<I_SortableMapElement>();
+    protected A_MapMarker[] m_elementMarker;
     /**
      * indicates if the markers are updated at the moment.
      */
@@ -145,15 +155,158 @@ public abstract class A_Handler<T, U, V, W, X> {
      * All currently set marker objects.
      */
     protected List<A_MapMarker> m_marker;
-    /**
-     * Map containing element data and related marker Object.
-     */
-    protected Map<I_SortableMapElement, A_MapMarker> m_markerMap;
     /**
      * metrics of display.
      */
     protected DisplayMetrics m_metrics;
 
+    /**
+     * Indicates if the precomputed cluster tree should be used instead of the incremental clustering.
+     */
+    private volatile boolean m_useClusterTree = false;
+
+    /**
+     * Indicates if the current marker were created from the cluster tree.
+     */
+    private boolean m_clusterTreeActive = false;
+
+    /**
+     * Precomputed clusters for all zoom levels, created on first use.
+     */
+    private ClusterTree m_clusterTree;
+
+    /**
+     * Marker created from the cluster tree, key is level id and index of the cluster.
+     */
+    private Map<Long, A_MapMarker> m_treeMarker = new HashMap<>();
+
+    /**
+     * Indicates if the clusters should be computed and cached per map tile instead of the incremental clustering.
+     */
+    private volatile boolean m_useTiles = false;
+
+    /**
+     * Indicates if the current marker were created from tiles.
+     */
+    private boolean m_tilesActive = false;
+
+    /**
+     * Clusters of recently shown map tiles.
+     */
+    private final TileClusterCache m_tileCache = new TileClusterCache(TileClusterCache.DEFAULT_MAX_TILES);
+
+    /**
+     * Marker created from tiles, key is the tile key, the array index is the index of the cluster within the tile.
+     */
+    private Map<Long, A_MapMarker[]> m_tileMarker = new HashMap<>();
+
+    /**
+     * Bounds of the last update of the visible elements (north, west, south, east), null if all elements have to be
+     * checked on the next update.
+     */
+    private double[] m_lastBounds;
+
+    /**
+     * Clustering results of recently shown zoom levels, used by the incremental clustering.
+     */
+    private final ClusterCache m_clusterCache = new ClusterCache(ClusterCache.DEFAULT_MAX_BYTES);
+
+    /**
+     * Computes the clusters of the adjacent zoom levels in advance, see setZoomPrefetch.
+     */
+    private final ZoomPrefetcher m_prefetcher = new ZoomPrefetcher(this, m_clusterCache);
+
+    /**
+     * Indicates if the clusters of the adjacent zoom levels should be computed in advance.
+     */
+    private volatile boolean m_prefetchZoom = false;
+
+    /**
+     * Minimal number of new elements to use the parallel clustering, less elements are clustered sequentially.
+     */
+    private static final int PARALLEL_MIN_ELEMENTS = 5000;
+
+    /**
+     * Indicates if many new elements should be clustered on multiple threads.
+     */
+    private volatile boolean m_parallelClustering = false;
+
+    /**
+     * Parallel clustering with its own thread pool, created on first use and released when the parallel clustering is
+     * disabled. Only used on the update thread.
+     */
+    private ParallelClustering<T> m_parallel;
+
+    /**
+     * Elements to be added by the next update, see addElements. Guarded by m_pendingAdd.
+     */
+    private final LinkedHashSet<I_SortableMapElement> m_pendingAdd = new LinkedHashSet<>();
+
+    /**
+     * Elements to be removed by the next update, see removeElements. Guarded by m_pendingAdd.
+     */
+    private final LinkedHashSet<I_SortableMapElement> m_pendingRemove = new LinkedHashSet<>();
+
+    /**
+     * Region of an update of the marker.
+     */
+    private class UpdateRequest {
+        private final T m_projection;
+        private final W m_bounds;
+        private final float m_zoom;
+
+        private UpdateRequest(T projection, W bounds, float zoom) {
+            m_projection = projection;
+            m_bounds = bounds;
+            m_zoom = zoom;
+        }
+    }
+
+    /**
+     * Latest update request, null if there was none.
+     */
+    private volatile UpdateRequest m_lastRequest;
+
+    /**
+     * Update request which is not computed yet, null if there is none. The update thread always computes the latest
+     * one.
+     */
+    private final AtomicReference<UpdateRequest> m_pendingRequest = new AtomicReference<>();
+
+    /**
+     * Guards m_drawing and m_updateAfterDraw.
+     */
+    private final Object m_drawLock = new Object();
+
+    /**
+     * Indicates if a change set is drawn on the UI thread at the moment. Guarded by m_drawLock.
+     */
+    private boolean m_drawing;
+
+    /**
+     * Indicates if an update was submitted while a change set was drawn. Guarded by m_drawLock.
+     */
+    private boolean m_updateAfterDraw;
+
+    /**
+     * Element and color of a marker to be shown by id.
+     */
+    private static class IdChange {
+        private final I_SortableMapElement m_element;
+        private final A_MapMarker.COLOR m_color;
+
+        private IdChange(I_SortableMapElement element, A_MapMarker.COLOR color) {
+            m_element = element;
+            m_color = color;
+        }
+    }
+
+    /**
+     * Pending changes of addElementsWithId and removeElementsById by id, null if the marker of the id is to be
+     * removed. Only the last change per id is kept. Guarded by m_pendingIds.
+     */
+    private final LinkedHashMap<String, IdChange> m_pendingIds = new LinkedHashMap<>();
+
     public A_MapMarker.COLOR getActiveColor(){
         return m_activeColor;
     }
@@ -206,8 +359,14 @@ public abstract class A_Handler<T, U, V, W, X> {
         if(m_marked==null){
             return;
         }
+        if(m_marked.m_marker==null){
+            //Not on the map any more, the color is used when it gets drawn again
+            m_marked.setColor(m_defaultColor);
+            m_marked=null;
+            return;
+        }
         Log.i(LOG_NAME, "reset old marker");// set old marked symbol
-        if(m_markerOnMap.containsKey(m_marked.m_marker)) {
+        if(m_markerOnMap.get(m_marked.m_marker)==m_marked) { //Map marker might be reused by another marker
             m_markerOnMap.remove(m_marked.m_marker);
             m_marked.setColor(m_defaultColor);
             updateSingleMarker(m_map, m_marked);
@@ -217,6 +376,10 @@ public abstract class A_Handler<T, U, V, W, X> {
     }
 
     public void toggleMarker(A_MapMarker marker){
+        if(marker.m_marker==null){
+            //Not on the map, there is no map marker to toggle
+            return;
+        }
         Log.i(LOG_NAME,"Try to activate marker: "+marker.getID().toString());
         String markedId="null";
         if(m_marked!=null){
@@ -277,17 +440,14 @@ public abstract class A_Handler<T, U, V, W, X> {
     }
 
     /**
-     * indicates if changes are pending.
+     * Time per frame in nanoseconds the UI thread may spend on applying marker changes.
      */
-    protected boolean m_queuePending = false;
-    /**
-     * queued projection.
-     */
-    protected T m_queueProjection;
+    private long m_frameBudgetNanos = 4000000L;
+
     /**
-     * queued zoom.
+     * Background thread for the marker updates.
      */
-    protected float m_queueZoom;
+    private final UpdateExecutor m_updateExecutor = new UpdateExecutor(LOG_NAME);
     /**
      * indicates if marker handler gets started.
      */
@@ -303,8 +463,8 @@ public abstract class A_Handler<T, U, V, W, X> {
         m_metrics = metrics;
         m_elements = elements;
         m_marker = new ArrayList<>();
-        m_markerMap = new HashMap<>();
-        m_elements_notOnMap.addAll(elements);
+        m_store = new ElementStore(elements);
+        m_elementMarker = new A_MapMarker[m_store.size()];
         m_cursor = 0;
         m_startCase = true;
         Log.d(LOG_NAME, elements.size() + " Objects found");
@@ -364,10 +524,11 @@ public abstract class A_Handler<T, U, V, W, X> {
      * If multiple elements are strored under a marker, they can be iterated through moveMarkerCursor
      *
      * @param marker google marker for which an element should be returned
-     * @return I_SortableMapElement
+     * @return I_SortableMapElement, null if the marker is not (or no more) on the map
      */
     public I_SortableMapElement getElementFromMarker(V marker) {
-        return m_markerOnMap.get(marker).getCurrentElement();
+        A_MapMarker mapMarker = m_markerOnMap.get(marker);
+        return mapMarker == null ? null : mapMarker.getCurrentElement();
     }
 
     /**
@@ -376,7 +537,7 @@ public abstract class A_Handler<T, U, V, W, X> {
      * @return current element
      */
     public I_SortableMapElement getSortableElement() {
-        return m_elements.get(m_elementPositionsOnMap.get(m_cursor));
+        return m_store.getElement(m_elementPositionsOnMap.get(m_cursor));
     }
 
 
@@ -422,16 +583,20 @@ public abstract class A_Handler<T, U, V, W, X> {
      * @param marker google marker
      */
     public void moveMarkerCursor(V marker) {
-        m_markerOnMap.get(marker).moveCursor();
+        A_MapMarker mapMarker = m_markerOnMap.get(marker);
+        if (mapMarker != null) {
+            mapMarker.moveCursor();
+        }
     }
 
     /**
      * prepares the sorted property to be shown.
+     * Call it again after elements were added or removed, once the next update is finished.
      */
     public void prepareSortedElements() {
         m_elementPositionsOnMap = new ArrayList<>();
-        for (int i = 0; i < m_elements.size(); i++) {
-            if (!m_elements.get(i).getLatLng().equals(new LatLng(0, 0))) {
+        for (int i = 0; i < m_store.size(); i++) {
+            if (!m_store.isRemoved(i) && !(m_store.getLatitude(i) == 0 && m_store.getLongitude(i) == 0)) {
                 m_elementPositionsOnMap.add(0, i);
             }
         }
@@ -446,14 +611,116 @@ public abstract class A_Handler<T, U, V, W, X> {
     public void removeElementById(String id) {
         A_MapMarker marker = (A_MapMarker) m_nameMap.get(id);
         if (marker == null) {
-            Log.d(LOG_NAME, "unable to delete marker id:" + id);
-            Log.d(LOG_NAME, "Available ids:" + m_nameMap.keySet().toString());
+            Log.d(LOG_NAME, "unable to delete marker id:" + id + ", " + m_nameMap.size() + " ids available");
             return;
         }
         removeMarker((V) marker.getMarker());
         m_nameMap.remove(id);
     }
 
+    /**
+     * Adds many elements with their Id to the map, like addElementWithId. The marker are created on the update
+     * thread and added to the map in one change set (spread over frames, if the map has no batch operation).
+     * Existing marker of the ids are replaced. Changes of addElementsWithId and removeElementsById are applied in call
+     * order, after the changes of previous calls.
+     *
+     * @param elements the elements to show on map (provide a LatLng and an Id)
+     * @param c        the Color of the marker
+     */
+    public void addElementsWithId(Collection<? extends I_SortableMapElement> elements, A_MapMarker.COLOR c) {
+        synchronized (m_pendingIds) {
+            for (I_SortableMapElement element : elements) {
+                m_pendingIds.remove(element.getId());
+                m_pendingIds.put(element.getId(), new IdChange(element, c));
+            }
+        }
+        submitIdChanges();
+    }
+
+    /**
+     * Removes the marker of many ids from the map, in one change set. See addElementsWithId.
+     *
+     * @param ids to be removed, unknown ids are ignored
+     */
+    public void removeElementsById(Collection<String> ids) {
+        synchronized (m_pendingIds) {
+            for (String id : ids) {
+                m_pendingIds.remove(id);
+                m_pendingIds.put(id, null);
+            }
+        }
+        submitIdChanges();
+    }
+
+    /**
+     * Submits the pending id changes to the update thread. They don't cancel a running update of the marker and are
+     * drawn after its changes.
+     */
+    private void submitIdChanges() {
+        m_updateExecutor.enqueue(new UpdateExecutor.Task() {
+            @Override
+            public void run() {
+                runUpdate(this);
+            }
+        });
+    }
+
+    /**
+     * Creates the marker of the pending id changes. Runs on the update thread.
+     *
+     * @return new marker by id, null if the marker of the id is removed, or null if there are no pending changes
+     */
+    private Map<String, A_MapMarker> createIdMarker() {
+        Map<String, IdChange> pending;
+        synchronized (m_pendingIds) {
+            if (m_pendingIds.isEmpty()) {
+                return null;
+            }
+            pending = new LinkedHashMap<>(m_pendingIds);
+            m_pendingIds.clear();
+        }
+        Map<String, A_MapMarker> ret = new LinkedHashMap<>();
+        for (Map.Entry<String, IdChange> entry : pending.entrySet()) {
+            IdChange change = entry.getValue();
+            A_MapMarker created = null;
+            if (change != null) {
+                created = getMarkerInstance();
+                created.addElement(change.m_element);
+                created.refresh();
+                created.setColor(change.m_color);
+            }
+            ret.put(entry.getKey(), created);
+        }
+        return ret;
+    }
+
+    /**
+     * Updates the id index by the new marker and collects the resulting changes of the map. Runs on UI thread.
+     *
+     * @param marker new marker by id, null if the marker of the id is removed
+     * @return changes to be applied
+     */
+    private MarkerChangeSet<V> createIdChangeSet(Map<String, A_MapMarker> marker) {
+        MarkerChangeSet<V> ret = new MarkerChangeSet<>();
+        int missing = 0;
+        for (Map.Entry<String, A_MapMarker> entry : marker.entrySet()) {
+            A_MapMarker created = entry.getValue();
+            A_MapMarker old = (A_MapMarker) (created == null ? m_nameMap.remove(entry.getKey()) : m_nameMap.put(entry.getKey(), created));
+            if (old != null && old.getMarker() != null) {
+                ret.remove((V) old.getMarker());
+            } else if (created == null) {
+                missing++;
+            }
+            if (created != null) {
+                ret.add(created);
+            }
+        }
+        if (missing > 0) {
+            Log.d(LOG_NAME, "unable to delete " + missing + " marker ids");
+        }
+        return ret;
+    }
+
     /**
      * Removes the marker from the map
      *
@@ -468,17 +735,146 @@ public abstract class A_Handler<T, U, V, W, X> {
      * @param min_distance   min distance to be set
      */
     public void setMarkerSpacing(int typedValueUnit, float min_distance) {
-        m_minPixelDistance = (int) TypedValue.applyDimension(typedValueUnit, min_distance, m_metrics);
+        setMarkerSpacing((int) TypedValue.applyDimension(typedValueUnit, min_distance, m_metrics));
     }
 
     public void setMarkerSpacing(int min_distance_pixel){
         m_minPixelDistance = min_distance_pixel;
+        m_clusterCache.invalidate();
+        m_tileCache.invalidate();
     }
 
     public int getMinPixelDistance(){
         return m_minPixelDistance;
     }
 
+    /**
+     * Enables or disables the hierarchical clustering.
+     * If enabled, all elements get clustered once for every zoom level (on the first update after enabling) and
+     * updates of the map only look up the clusters of the current zoom level in the visible region.
+     * This needs more memory, but makes zoom changes very fast for large datasets.
+     *
+     * @param enabled true to use the hierarchical clustering
+     */
+    public void setHierarchicalClustering(boolean enabled) {
+        m_useClusterTree = enabled;
+    }
+
+    /**
+     * Enables or disables the clustering per map tile.
+     * If enabled, elements get clustered per Web-Mercator tile of the current zoom level and the clusters are cached per
+     * tile, so an update only clusters the visible tiles which are not cached yet. Clusters at tile borders which are
+     * closer than the marker spacing are shown as one marker.
+     *
+     * @param enabled true to cluster per map tile
+     */
+    public void setTiledClustering(boolean enabled) {
+        m_useTiles = enabled;
+    }
+
+    /**
+     * Sets the max number of map tiles whose clusters are cached, see setTiledClustering.
+     *
+     * @param tiles max number of tiles, default is 256
+     */
+    public void setTileCacheSize(int tiles) {
+        m_tileCache.setMaxTiles(tiles);
+    }
+
+    /**
+     * Sets the memory bound of the cache for clustering results of recently shown zoom levels.
+     * The least recently used zoom levels are removed from the cache first. 0 disables the cache.
+     *
+     * @param bytes memory bound in bytes, default is 2 MB
+     */
+    public void setClusterCacheSize(long bytes) {
+        m_clusterCache.setMaxBytes(bytes);
+    }
+
+    /**
+     * Enables or disables the prefetch of adjacent zoom levels.
+     * If enabled, the clusters for one zoom level above and below the current one are computed on a low priority
+     * thread after each update, so the next zoom step can use them. The prefetch gets cancelled by the next update.
+     * Only used by the incremental clustering, needs the cluster cache (see setClusterCacheSize).
+     *
+     * @param enabled true to prefetch adjacent zoom levels
+     */
+    public void setZoomPrefetch(boolean enabled) {
+        m_prefetchZoom = enabled;
+        if (!enabled) {
+            m_prefetcher.cancel();
+        }
+    }
+
+    /**
+     * Enables or disables the parallel clustering.
+     * If enabled, updates which add many elements to the map (e.g. the first one) split the visible region into tiles
+     * and cluster the tiles on multiple threads. Marker at the tile borders get merged afterwards. Needs Android 5.0
+     * (API 21), on older versions the elements are always clustered sequentially.
+     * The threads of the handler are stopped with the next update after disabling it.
+     *
+     * @param enabled true to use the parallel clustering
+     */
+    public void setParallelClustering(boolean enabled) {
+        m_parallelClustering = enabled;
+    }
+
+    /**
+     * Releases cached data on memory pressure. Call it from onTrimMemory of the activity or application.
+     *
+     * @param level see ComponentCallbacks2
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            m_clusterCache.clear();
+            m_tileCache.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            m_clusterCache.trimToSize(m_clusterCache.getMaxBytes() / 2);
+        }
+    }
+
+    /**
+     * Gets the store with the positions of all elements.
+     *
+     * @return ElementStore
+     */
+    ElementStore getStore() {
+        return m_store;
+    }
+
+    /**
+     * Gets the marker which currently represents an element on the map.
+     *
+     * @param element to look for
+     * @return marker or null, if element is not on the map
+     */
+    protected A_MapMarker getMarkerOfElement(I_SortableMapElement element) {
+        int h = m_store.getHandle(element);
+        A_MapMarker[] elementMarker = m_elementMarker;
+        //The handle of an added element may be known before the update thread resized m_elementMarker
+        return h < 0 || h >= elementMarker.length ? null : elementMarker[h];
+    }
+
+    /**
+     * Sets the marker of an element.
+     *
+     * @param handle of the element
+     * @param marker which represents the element, null if element is not on the map
+     */
+    void setElementMarker(int handle, A_MapMarker marker) {
+        m_elementMarker[handle] = marker;
+    }
+
+    /**
+     * Gets the size of the whole world in pixel at zoom level 0. Used to estimate pixel distances for each zoom level
+     * by the hierarchical clustering.
+     *
+     * @return size in pixel
+     */
+    protected double getWorldTileSize() {
+        return 256 * (m_metrics == null ? 1 : m_metrics.density);
+    }
+
     /**
      * Sets cursor for sortable elements to given element.
      *
@@ -500,69 +896,331 @@ public abstract class A_Handler<T, U, V, W, X> {
 
     /**
      * Updates the marker on a map.
+     * The update runs on the background thread of the handler. If updates are requested faster than they are
+     * computed, only the latest waiting one is run and only the results of the latest one are drawn.
      *
      * @param projection of google map
      * @param zoom       of google map
      */
     public void updateMarkerOnMap(final T projection, final float zoom) {
-        if (m_isBusy) {
-            setQueue(projection, zoom);
+        m_projection=projection;
+        UpdateRequest request = new UpdateRequest(projection, getVisibleRegion(projection), zoom);
+        m_lastRequest = request;
+        m_pendingRequest.set(request);
+        submitUpdate();
+    }
+
+    /**
+     * Adds elements to the clustered elements. Can be called from any thread, e.g. for each page loaded from a
+     * backend. The elements are clustered on the update thread by the next update, which gets requested for the
+     * current map region if updateMarkerOnMap was called before. Only the new elements in the visible region are
+     * sorted to the marker, existing clusters are kept.
+     * Elements which are added already are ignored.
+     *
+     * @param elements to be added
+     */
+    public void addElements(Iterable<? extends I_SortableMapElement> elements) {
+        synchronized (m_pendingAdd) {
+            for (I_SortableMapElement element : elements) {
+                //The last call for an element wins
+                m_pendingRemove.remove(element);
+                m_pendingAdd.add(element);
+            }
+        }
+        requestUpdate();
+    }
+
+    /**
+     * Removes elements from the clustered elements. Can be called from any thread. The elements are removed from their
+     * marker on the update thread by the next update, which gets requested for the current map region if
+     * updateMarkerOnMap was called before.
+     *
+     * @param elements to be removed
+     */
+    public void removeElements(Iterable<? extends I_SortableMapElement> elements) {
+        synchronized (m_pendingAdd) {
+            for (I_SortableMapElement element : elements) {
+                m_pendingAdd.remove(element);
+                m_pendingRemove.add(element);
+            }
+        }
+        requestUpdate();
+    }
+
+    /**
+     * Requests an update for the region and zoom of the last updateMarkerOnMap call, if there was one.
+     */
+    private void requestUpdate() {
+        UpdateRequest request = m_lastRequest;
+        if (request != null) {
+            //A waiting request is newer
+            m_pendingRequest.compareAndSet(null, request);
+            submitUpdate();
+        }
+    }
+
+    /**
+     * Submits an update of the marker for the pending request to the update thread.
+     */
+    private void submitUpdate() {
+        m_prefetcher.cancel();
+        m_updateExecutor.submit(new UpdateExecutor.Task() {
+            @Override
+            public void run() {
+                runUpdate(this);
+            }
+        });
+    }
+
+    /**
+     * Computes the pending update request and the pending id changes and sends the changes to the UI thread. Runs on
+     * the update thread.
+     * While a change set is drawn, the marker must not change. Then the update is not computed, but submitted again by
+     * drawInFrames when the change set is drawn. So the update thread never waits for the UI thread.
+     *
+     * @param task running the update
+     */
+    private void runUpdate(final UpdateExecutor.Task task) {
+        synchronized (m_drawLock) {
+            if (m_drawing) {
+                m_updateAfterDraw = true;
+                return;
+            }
+        }
+        final UpdateRequest request = m_pendingRequest.getAndSet(null);
+        long t = System.currentTimeMillis();
+        final int version = m_clusterCache.getVersion();
+        MarkerChangeSet<V> changes = null;
+        double[] prefetchBounds = null;
+        if (request != null) {
+            Log.i(LOG_NAME, "start calculation");
+            updateMap(request.m_projection, request.m_bounds, request.m_zoom);
+            if (task.isCancelled()) {
+                //The next update starts on the current state, its drawOnMap shows the changes of this one too
+                Log.i(LOG_NAME, "Calculation superseded, skip drawing: " + (System.currentTimeMillis() - t));
+                return;
+            }
+            changes = createChangeSet();
+            prepareChanges(request.m_projection, changes);
+            if (m_prefetchZoom && !m_clusterTreeActive && !m_tilesActive && m_lastBounds != null) {
+                prefetchBounds = m_lastBounds.clone();
+            }
+            Log.i(LOG_NAME, "Calculation ready, send " + changes.size() + " changes to ui thread: " + (System.currentTimeMillis() - t));
+        }
+        final Map<String, A_MapMarker> idMarker = createIdMarker();
+        if (changes == null && idMarker == null) {
             return;
         }
-        m_projection=projection;
-        W bounds = getVisibleRegion(projection);
-        Thread thread = new Thread(new Runnable() {
+        if (idMarker != null) {
+            Log.i(LOG_NAME, "Id marker ready, send " + idMarker.size() + " changes to ui thread: " + (System.currentTimeMillis() - t));
+        }
+        final MarkerChangeSet<V> mapChanges = changes;
+        final double[] bounds = prefetchBounds;
+        final float zoom = m_mapZoom;
+        synchronized (m_drawLock) {
+            m_drawing = true;
+        }
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
             @Override
             public void run() {
-                long t = System.currentTimeMillis();
-                Log.i(LOG_NAME, "start calculation");
-                updateMap(projection,bounds, zoom);
-                Log.i(LOG_NAME, "Calculation ready, send to ui thread: " + (System.currentTimeMillis() - t));
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                drawInFrames(mapChanges, idMarker, task, new Runnable() {
                     @Override
                     public void run() {
-
-                        long t = System.currentTimeMillis();
-                        drawOnMap();
-                        Log.i(LOG_NAME, "Draw ready: " + (System.currentTimeMillis() - t));
-                        for(OnChangedMapListener listener:m_mapChangedListener){
-                            listener.handleChangedMap();
+                        finishDrawing();
+                        if (bounds != null && !task.isCancelled()) {
+                            m_prefetcher.prefetch(bounds, zoom, version);
                         }
                     }
                 });
             }
         });
-        thread.start();
+    }
+
+    /**
+     * Sets the priority of the background thread for marker updates.
+     *
+     * @param priority see android.os.Process, default is Process.THREAD_PRIORITY_BACKGROUND
+     */
+    public void setUpdateThreadPriority(int priority) {
+        m_updateExecutor.setPriority(priority);
+    }
+
+    /**
+     * Cancels pending marker updates. A running update gets finished, but its results are not drawn.
+     * Pending changes of addElementsWithId and removeElementsById are not cancelled.
+     */
+    public void cancelUpdates() {
+        m_pendingRequest.set(null);
+        m_updateExecutor.cancel();
+        synchronized (m_pendingIds) {
+            if (m_pendingIds.isEmpty()) {
+                return;
+            }
+        }
+        submitIdChanges();
+    }
+
+    /**
+     * Sets the time per frame the UI thread may spend on applying marker changes after an update.
+     *
+     * @param millis time budget per frame in milliseconds
+     */
+    public void setFrameBudget(long millis) {
+        m_frameBudgetNanos = millis * 1000000L;
     }
 
     /**
      * Draws the marker on the map.
+     * All changes are applied at once, updateMarkerOnMap applies them in chunks over multiple frames instead.
      */
     protected void drawOnMap() {
-        Log.d(LOG_NAME, "start");
-        Log.d(LOG_NAME, "Currently #Marker:" + m_marker.size());
+        MarkerChangeSet<V> changes = createChangeSet();
+        prepareChanges(m_projection, changes);
+        applyChanges(changes, Long.MAX_VALUE);
+        onDrawFinished();
+    }
 
-        List<A_MapMarker> markerToDelete = new ArrayList<>();
-        Iterator<A_MapMarker> iterator = m_marker.iterator();
-        while (iterator.hasNext()) {
-            A_MapMarker marker = iterator.next();
+    /**
+     * Collects the changes of the marker since the last draw and removes the marker which are not on the map any more
+     * from m_marker. Run it on the update thread, after updateMap.
+     *
+     * @return changes to be applied on the UI thread
+     */
+    MarkerChangeSet<V> createChangeSet() {
+        MarkerChangeSet<V> ret = new MarkerChangeSet<>();
+        List<A_MapMarker> kept = new ArrayList<>(m_marker.size());
+        for (A_MapMarker marker : m_marker) {
             if (marker.isOnMap()) {
-                Log.d(LOG_NAME, "keep Marker");
+                kept.add(marker);
                 if (marker.isTouched()) {
-                    Log.d(LOG_NAME, "set new Position");
-                    marker.setMarker(m_map);
+                    if (marker.getMarker() == null) {
+                        ret.add(marker);
+                    } else {
+                        ret.update(marker);
+                    }
+                }
+            } else if (marker.getMarker() != null) {
+                ret.remove((V) marker.getMarker());
+            }
+        }
+        Log.d(LOG_NAME, "Currently #Marker:" + kept.size() + ", removed " + (m_marker.size() - kept.size()));
+        m_marker = kept;
+        return ret;
+    }
+
+    /**
+     * Prepares the changes before they are sent to the UI thread. Runs on the update thread, after createChangeSet.
+     * Override to do expensive drawing work off the UI thread.
+     *
+     * @param projection of the map
+     * @param changes    to be applied
+     */
+    protected void prepareChanges(T projection, MarkerChangeSet<V> changes) {
+    }
+
+    /**
+     * Applies marker changes until all are applied or the deadline is reached. Runs on UI thread.
+     * Override to apply the changes in batches, if the map supports it.
+     *
+     * @param changes  to be applied
+     * @param deadline in System.nanoTime() units
+     * @return true, if all changes are applied
+     */
+    protected boolean applyChanges(MarkerChangeSet<V> changes, long deadline) {
+        return changes.apply(this, deadline);
+    }
+
+    /**
+     * Applies the changes in chunks, one chunk per frame within the frame budget, the changes of the marker first and
+     * the id changes afterwards. Runs on UI thread.
+     * If the update of the changes is superseded by a newer one, the remaining changes are applied at once, so the
+     * newer update can start. They can't be skipped, because the marker state of the update thread includes them.
+     * The OnChangedMapListener are only called if there are changes of the marker.
+     *
+     * @param changes  of the marker to be applied, null if there are none
+     * @param idMarker new marker by id to be applied, see createIdChangeSet, null if there are none
+     * @param task     update which created the changes
+     * @param finished run on UI thread when all changes are applied, also if applying them failed
+     */
+    private void drawInFrames(final MarkerChangeSet<V> changes, final Map<String, A_MapMarker> idMarker, final UpdateExecutor.Task task, final Runnable finished) {
+        final long start = System.currentTimeMillis();
+        final Runnable step = new Runnable() {
+            /**
+             * Changes of the id marker, created when the changes of the marker are applied.
+             */
+            private MarkerChangeSet<V> m_idChanges;
+
+            @Override
+            public void run() {
+                boolean done = true;
+                try {
+                    long deadline = task.isCancelled() ? Long.MAX_VALUE : System.nanoTime() + m_frameBudgetNanos;
+                    done = changes == null || m_idChanges != null || applyChanges(changes, deadline);
+                    if (done && idMarker != null) {
+                        if (m_idChanges == null) {
+                            m_idChanges = createIdChangeSet(idMarker);
+                        }
+                        done = applyChanges(m_idChanges, deadline);
+                    }
+                } finally {
+                    if (done) {
+                        finished.run();
+                    }
+                }
+                if (!done) {
+                    postNextFrame(this);
+                    return;
+                }
+                Log.i(LOG_NAME, "Draw ready: " + (System.currentTimeMillis() - start));
+                if (changes == null) {
+                    return;
+                }
+                onDrawFinished();
+                for(OnChangedMapListener listener:m_mapChangedListener){
+                    listener.handleChangedMap();
                 }
-            } else {
-                Log.d(LOG_NAME, "not on map, remove");
-                removeMarker((V) marker.getMarker());
-                markerToDelete.add(marker);
             }
+        };
+        step.run();
+    }
+
+    /**
+     * Marks the change set as drawn and submits the update which was requested meanwhile. Runs on UI thread.
+     */
+    private void finishDrawing() {
+        boolean update;
+        synchronized (m_drawLock) {
+            m_drawing = false;
+            update = m_updateAfterDraw;
+            m_updateAfterDraw = false;
         }
-        for (A_MapMarker markerDel : markerToDelete) {
-            m_marker.remove(markerDel);
+        if (update) {
+            submitUpdate();
         }
-        Log.d(LOG_NAME, "update finished");
-        Log.d(LOG_NAME, "Currently #Marker:" + m_marker.size());
+    }
+
+    /**
+     * Runs the task with the next frame. Uses the Choreographer if available (API 16), a Handler otherwise.
+     *
+     * @param task to be run
+     */
+    private void postNextFrame(final Runnable task) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    task.run();
+                }
+            });
+        } else {
+            new Handler(Looper.getMainLooper()).post(task);
+        }
+    }
+
+    /**
+     * Called on UI thread, after all marker changes are applied.
+     */
+    private void onDrawFinished() {
         if (m_chooseCursor) {
             showCurrentSortableMarker();
             m_chooseCursor = false;
@@ -597,20 +1255,6 @@ public abstract class A_Handler<T, U, V, W, X> {
         return m_map;
     }
 
-    /**
-     * Sets a projection and zoom value to the queue. Values in the queue get read and used when the currently running
-     * marker update process is ready.
-     *
-     * @param projection of google map
-     * @param zoom       of google map
-     */
-    protected void setQueue(T projection, float zoom) {
-        m_queueProjection = projection;
-        m_queueBounds= getVisibleRegion(projection);
-        m_queueZoom = zoom;
-        m_queuePending = true;
-    }
-
     /**
      * Starts the update process of the map.
      * This process needs some time, don't run it on UI thread!
@@ -620,144 +1264,692 @@ public abstract class A_Handler<T, U, V, W, X> {
      * @param zoom       of google map
      */
     protected void updateMap(T projection, W bounds, float zoom) {
-        m_queueProjection = null;
-        m_queueBounds=null;
         m_isBusy = true;
-        long t = System.currentTimeMillis();
-        Set<I_SortableMapElement> elementsToAdd = updateVisibleElements(projection,bounds, m_markerMap);
-        Log.i(LOG_NAME, "updateVisibleElements: " + (System.currentTimeMillis() - t));
-        if (m_startCase) {
-            m_mapZoom = zoom;
-        }
-        t = System.currentTimeMillis();
-        if (m_mapZoom != zoom) {
-            int mode = m_mapZoom > zoom ? ZOOM_OUT : ZOOM_IN;
-            m_mapZoom = zoom;
-            //m_marker: no items get added or removed, just changed. some items may have no pictures any more -> isOnMap = false
-            elementsToAdd.addAll(getMarkerInstance().handleZoomChange(projection, m_marker, mode, m_markerMap)); //changes m_markerMap and m_marker
-        }
-        Log.i(LOG_NAME, "handleZoomChange: " + (System.currentTimeMillis() - t));
-
-        t = System.currentTimeMillis();
-        updateMarker(elementsToAdd, projection);
-        Log.i(LOG_NAME, "updateMarker: " + (System.currentTimeMillis() - t) + " for " + elementsToAdd.size() + " new Elements");
-        m_startCase = false;
+        applyPendingElements();
+        int version = m_clusterCache.getVersion();
+        boolean tiles = m_useTiles && !m_useClusterTree;
+        if (m_clusterTreeActive != m_useClusterTree || m_tilesActive != tiles) {
+            resetMarker();
+            m_clusterTreeActive = m_useClusterTree;
+            m_tilesActive = tiles;
+        }
+        if (m_clusterTreeActive) {
+            updateMarkerFromTree(bounds, zoom);
+        } else if (m_tilesActive) {
+            updateMarkerFromTiles(bounds, zoom);
+        } else {
+            long t = System.currentTimeMillis();
+            if (!m_startCase && m_mapZoom != zoom) {
+                m_clusterCache.put(m_mapZoom, m_marker, version);
+                if (restoreClusters(bounds, zoom)) {
+                    Log.i(LOG_NAME, "restoreClusters: " + (System.currentTimeMillis() - t));
+                }
+            }
+            t = System.currentTimeMillis();
+            IntList elementsToAdd = updateVisibleElements(bounds, !m_startCase && m_mapZoom == zoom);
+            Log.i(LOG_NAME, "updateVisibleElements: " + (System.currentTimeMillis() - t));
+            if (m_startCase) {
+                m_mapZoom = zoom;
+            }
+            t = System.currentTimeMillis();
+            if (m_mapZoom != zoom) {
+                int mode = m_mapZoom > zoom ? ZOOM_OUT : ZOOM_IN;
+                m_mapZoom = zoom;
+                //m_marker: no items get added or removed, just changed. some items may have no pictures any more -> isOnMap = false
+                elementsToAdd.addAll(getMarkerInstance().handleZoomChange(projection, m_marker, mode)); //changes m_elementMarker and m_marker
+            }
+            Log.i(LOG_NAME, "handleZoomChange: " + (System.currentTimeMillis() - t));
 
-        //Is there another update waiting?
-        if (m_queuePending) {
-            processQueue();
+            t = System.currentTimeMillis();
+            updateMarker(elementsToAdd, projection);
+            Log.i(LOG_NAME, "updateMarker: " + (System.currentTimeMillis() - t) + " for " + elementsToAdd.size() + " new Elements");
         }
+        m_startCase = false;
         m_isBusy = false;
     }
 
-    protected void processQueue(){
-        m_queuePending= false;
-        updateMap(m_queueProjection,m_queueBounds, m_queueZoom);
+    /**
+     * Adds and removes the elements of addElements and removeElements to the element store. Removed elements are taken
+     * from their marker, the cached clusters of the changed tiles are dropped. Runs on the update thread.
+     */
+    private void applyPendingElements() {
+        List<I_SortableMapElement> added, removed;
+        synchronized (m_pendingAdd) {
+            if (m_pendingAdd.isEmpty() && m_pendingRemove.isEmpty()) {
+                return;
+            }
+            added = new ArrayList<>(m_pendingAdd);
+            removed = new ArrayList<>(m_pendingRemove);
+            m_pendingAdd.clear();
+            m_pendingRemove.clear();
+        }
+        long t = System.currentTimeMillis();
+        IntList changed = new IntList(added.size() + removed.size());
+        //Waits for a running prefetch, which reads the store
+        synchronized (m_store) {
+            for (I_SortableMapElement element : added) {
+                int h = m_store.add(element);
+                if (h >= 0) {
+                    changed.add(h);
+                }
+            }
+            for (I_SortableMapElement element : removed) {
+                int h = m_store.getHandle(element);
+                if (h >= 0 && m_store.remove(h)) {
+                    changed.add(h);
+                }
+            }
+        }
+        if (m_elementMarker.length < m_store.size()) {
+            m_elementMarker = Arrays.copyOf(m_elementMarker, Math.max(m_store.size(), 2 * m_elementMarker.length));
+        }
+        Set<A_MapMarker> affected = new HashSet<>();
+        for (int i = 0; i < changed.size(); i++) {
+            int h = changed.get(i);
+            if (m_elementMarker[h] != null && m_store.isRemoved(h)) {
+                affected.add(m_elementMarker[h]);
+            }
+        }
+        IntList taken = new IntList();
+        for (A_MapMarker marker : affected) {
+            marker.removeDeletedElements(taken);
+            marker.refresh();
+        }
+        for (int i = 0; i < taken.size(); i++) {
+            m_elementMarker[taken.get(i)] = null;
+        }
+
+        m_clusterCache.invalidate();
+        m_clusterTree = null;
+        if (m_clusterTreeActive) {
+            //Level ids and cluster indices of the new tree don't match the current marker
+            resetMarker();
+        }
+        //Only the tiled clustering caches clusters by tile, without cached tiles there is nothing to drop
+        if (!m_tileCache.isEmpty() || !m_tileMarker.isEmpty()) {
+            for (int i = 0; i < changed.size(); i++) {
+                int h = changed.get(i);
+                for (int z = 0; z <= TileClusterCache.MAX_LEVEL; z++) {
+                    int n = 1 << z;
+                    long key = TileClusterCache.getKey(z, getTileIndex(m_store.getX(h), n), getTileIndex(m_store.getY(h), n));
+                    m_tileCache.remove(key);
+                    A_MapMarker[] tileMarker = m_tileMarker.remove(key);
+                    for (int j = 0; tileMarker != null && j < tileMarker.length; j++) {
+                        if (tileMarker[j] != null) {
+                            clearElementMarker(tileMarker[j]);
+                            tileMarker[j].removeAll();
+                        }
+                    }
+                }
+            }
+        }
+        //All visible elements have to be checked for new ones
+        m_lastBounds = null;
+        Log.i(LOG_NAME, "applyPendingElements: " + (System.currentTimeMillis() - t) + " for " + added.size() + " added, " + removed.size() + " removed");
     }
 
     /**
-     * Updates the marker list.
-     *
-     * @param elementsToAdd to map
-     * @param projection    of google map
+     * Removes all elements from the current marker. The marker get removed from the map by the next drawOnMap call.
      */
-    private void updateMarker(Set<I_SortableMapElement> elementsToAdd, T projection) {
-        for (I_SortableMapElement element : elementsToAdd) {
-            m_markerMap.put(element, getMarkerInstance().addElementToMarker(element, m_marker, projection));
+    private void resetMarker() {
+        for (A_MapMarker marker : m_marker) {
+            marker.removeAll();
         }
+        Arrays.fill(m_elementMarker, null);
+        m_treeMarker.clear();
+        m_tileMarker.clear();
+        m_lastBounds = null;
+        m_startCase = true;
     }
 
     /**
-     * Updates the visible elements. Removes non visible elements and returns new elements which have to be sorted to markers.
+     * Replaces the current marker by the cached clusters of the zoom level, if there are any. Only clusters with their
+     * center in the visible region are restored, the other visible elements are added by the next updateMarker call.
+     * <p>
+     * A cluster keeps the current marker of one of its elements, preferably the marked one, so it is updated on the map
+     * instead of being replaced. Marker with the same elements as the cluster are not touched at all.
+     * m_mapZoom is set to the zoom the clusters were computed for, so a larger zoom within the same zoom level is
+     * handled as zoom in afterwards.
      *
-     * @param projection   of google map
-     * @param markerMap    to be updated
-     * @return a set of I_SortableMapElement which have to be added to the map
+     * @param bounds visible region
+     * @param zoom   of the map
+     * @return true, if the clusters were restored
      */
-    private Set<I_SortableMapElement> updateVisibleElements(T projection,W bounds, Map<I_SortableMapElement, A_MapMarker> markerMap) {
-        //This method is slow...
-        Set<I_SortableMapElement> ret = new HashSet<>();
-        long t = System.currentTimeMillis();
-        Map<I_SortableMapElement, Boolean> changedPictures = getVisibleElements(bounds);
-        Log.i(LOG_NAME,"Detect visible elements in "+(System.currentTimeMillis()-t)+" ms, found "+changedPictures.size()+" Elements have changed");
-        for (I_SortableMapElement element : changedPictures.keySet()) {
-            if (changedPictures.get(element).equals(true)) {
-                markerMap.put(element, null); //new element
-                ret.add(element);
-                m_elements_notOnMap.remove(element);
+    private boolean restoreClusters(W bounds, float zoom) {
+        ClusterCache.Entry entry = m_clusterCache.get(zoom);
+        if (entry == null) {
+            return false;
+        }
+        LatLngBounds latLngBounds = toLatLngBounds(bounds);
+        A_MapMarker marked = m_marked;
+        Set<A_MapMarker> reused = new HashSet<>();
+        List<A_MapMarker> restored = new ArrayList<>();
+        List<IntList> restoredHandles = new ArrayList<>();
+        List<LatLng> restoredCenters = new ArrayList<>();
+        for (int i = 0; i < entry.size(); i++) {
+            LatLng center = entry.getCenter(i);
+            if (!latLngBounds.contains(center)) {
+                continue;
+            }
+            IntList handles = entry.getHandles(i);
+            A_MapMarker first = handles.size() == 0 ? null : m_elementMarker[handles.get(0)];
+            boolean same = first != null && first.getHandles().size() == handles.size();
+            A_MapMarker withMarked = null;
+            for (int j = 0; j < handles.size(); j++) {
+                A_MapMarker current = m_elementMarker[handles.get(j)];
+                same = same && current == first;
+                if (current != null && current == marked) {
+                    withMarked = current;
+                }
+            }
+            A_MapMarker marker = null;
+            if (withMarked != null && !reused.contains(withMarked)) {
+                marker = withMarked;
+            } else if (first != null && !reused.contains(first)) {
+                marker = first;
+            }
+            if (marker != null) {
+                reused.add(marker);
+            }
+            restored.add(marker);
+            //Unchanged marker are not touched
+            restoredHandles.add(same && marker == first ? null : handles);
+            restoredCenters.add(center);
+        }
+        for (A_MapMarker marker : m_marker) {
+            if (!reused.contains(marker)) {
+                marker.removeAll();
+            }
+        }
+        Arrays.fill(m_elementMarker, null);
+        for (int i = 0; i < restored.size(); i++) {
+            A_MapMarker marker = restored.get(i);
+            if (marker == null) {
+                marker = getMarkerInstance();
+                m_marker.add(marker);
+            }
+            IntList handles = restoredHandles.get(i);
+            if (handles != null) {
+                marker.setElements(handles, restoredCenters.get(i));
             } else {
-                A_MapMarker marker = markerMap.get(element);
-                marker.removeElement(element);
-                m_elements_notOnMap.add(element);
-                markerMap.remove(element); //element not visible any more
+                handles = marker.getHandles();
+            }
+            for (int j = 0; j < handles.size(); j++) {
+                m_elementMarker[handles.get(j)] = marker;
             }
         }
-        return ret;
+        m_mapZoom = entry.getZoom();
+        //All visible elements have to be checked
+        m_lastBounds = null;
+        return true;
     }
-    protected abstract boolean isInRegion(W bounds, LatLng place);
-
-    protected abstract W getVisibleRegion(T projection);
 
     /**
-     * Estimates which elements are currently visible and compares this to the currently shown markers.
+     * Updates the marker list by the precomputed clusters in the visible region.
+     * Clusters which are already shown keep their marker, so they are not touched.
      *
-     * @param bounds of a google map
-     * @return a map with changed elements and a boolean indicating if element was added(=true) or removed(=false)
+     * @param bounds visible region
+     * @param zoom   of the map
      */
-    private Map<I_SortableMapElement, Boolean> getVisibleElements(W bounds) {
-
-        Map<I_SortableMapElement, Boolean> ret = new HashMap<>();
+    private void updateMarkerFromTree(W bounds, float zoom) {
+        long t = System.currentTimeMillis();
+        if (m_clusterTree == null || m_clusterTree.getRadius() != getMinPixelDistance() || m_clusterTree.getTileSize() != getWorldTileSize()) {
+            m_clusterTree = new ClusterTree(m_store, getMinPixelDistance(), getWorldTileSize());
+            Log.i(LOG_NAME, "Cluster tree created: " + (System.currentTimeMillis() - t));
+            t = System.currentTimeMillis();
+        }
+        m_mapZoom = zoom;
+        IntList clusters = new IntList();
+        int levelId = m_clusterTree.query(toLatLngBounds(bounds), zoom, clusters);
+        Map<Long, A_MapMarker> treeMarker = new HashMap<>();
+        for (int i = 0; i < clusters.size(); i++) {
+            long key = ((long) levelId << 32) | clusters.get(i);
+            A_MapMarker marker = m_treeMarker.remove(key);
+            if (marker == null) {
+                marker = getMarkerInstance();
+                IntList handles = m_clusterTree.getHandles(levelId, clusters.get(i));
+                marker.setElements(handles, m_clusterTree.getCenter(levelId, clusters.get(i)));
+                for (int j = 0; j < handles.size(); j++) {
+                    m_elementMarker[handles.get(j)] = marker;
+                }
+                m_marker.add(marker);
+            }
+            treeMarker.put(key, marker);
+        }
+        //Remaining marker are not visible any more
+        for (A_MapMarker marker : m_treeMarker.values()) {
+            IntList handles = marker.getHandles();
+            for (int j = 0; j < handles.size(); j++) {
+                if (m_elementMarker[handles.get(j)] == marker) {
+                    m_elementMarker[handles.get(j)] = null;
+                }
+            }
+            marker.removeAll();
+        }
+        m_treeMarker = treeMarker;
+        Log.i(LOG_NAME, "updateMarkerFromTree: " + (System.currentTimeMillis() - t) + " for " + clusters.size() + " clusters");
+    }
 
-        for(I_SortableMapElement element:m_elements_notOnMap){
-            if(isInRegion(bounds,element.getLatLng())){
-                ret.put(element,true);
+    /**
+     * Updates the marker list by the clusters of the visible map tiles. Tiles which are not cached get clustered.
+     * Clusters of different tiles closer than the marker spacing at the tile borders are joined to one marker, owned by
+     * the cluster with the lowest key. Marker of unchanged clusters are kept, so they are not touched.
+     *
+     * @param bounds visible region
+     * @param zoom   of the map
+     */
+    private void updateMarkerFromTiles(W bounds, float zoom) {
+        long t = System.currentTimeMillis();
+        m_mapZoom = zoom;
+        int z = Math.max(0, Math.min(TileClusterCache.MAX_LEVEL, (int) Math.floor(zoom)));
+        int n = 1 << z;
+        double tileSize = getWorldTileSize();
+        double scale = tileSize * n;
+        int minDistance = getMinPixelDistance();
+        int version = m_tileCache.getVersion();
+        LatLngBounds latLngBounds = toLatLngBounds(bounds);
+        LatLng nw = latLngBounds.getNorthWest(), se = latLngBounds.getSouthEast();
+        int x0 = getTileIndex(MercatorProjection.getNormalizedX(nw.longitude), n);
+        int x1 = getTileIndex(MercatorProjection.getNormalizedX(se.longitude), n);
+        int y0 = getTileIndex(MercatorProjection.getNormalizedY(nw.latitude), n);
+        int y1 = getTileIndex(MercatorProjection.getNormalizedY(se.latitude), n);
+
+        //Visible clusters: tile key, index in tile and pixel position
+        List<ClusterCache.Entry> entries = new ArrayList<>();
+        List<Long> keys = new ArrayList<>();
+        IntList clusterTile = new IntList();
+        IntList clusterIndex = new IntList();
+        int computed = 0;
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; ; x = (x + 1) % n) {
+                long key = TileClusterCache.getKey(z, x, y);
+                ClusterCache.Entry entry = m_tileCache.get(key);
+                if (entry == null) {
+                    entry = clusterTile(z, x, y, scale);
+                    m_tileCache.put(key, entry, version);
+                    computed++;
+                }
+                for (int i = 0; i < entry.size(); i++) {
+                    if (latLngBounds.contains(entry.getCenter(i))) {
+                        clusterTile.add(entries.size());
+                        clusterIndex.add(i);
+                    }
+                }
+                entries.add(entry);
+                keys.add(key);
+                if (x == x1) {
+                    break;
+                }
             }
         }
-        for(A_MapMarker marker:m_marker){
-            if(Double.isNaN(marker.m_center.latitude) || Double.isNaN(marker.m_center.longitude)){
-                Log.w(LOG_NAME,"Marker has Nan value..");
+        int count = clusterTile.size();
+        double[] pixel = new double[2 * count];
+        for (int i = 0; i < count; i++) {
+            LatLng center = entries.get(clusterTile.get(i)).getCenter(clusterIndex.get(i));
+            pixel[2 * i] = MercatorProjection.getNormalizedX(center.longitude) * scale;
+            pixel[2 * i + 1] = MercatorProjection.getNormalizedY(center.latitude) * scale;
+        }
+
+        //Join clusters at tile borders, the owner of a group is the cluster with the lowest tile key and index
+        int[] owner = new int[count];
+        Map<Long, IntList> cells = new HashMap<>();
+        double cellSize = Math.max(1, minDistance);
+        for (int i = 0; i < count; i++) {
+            owner[i] = i;
+            double localX = pixel[2 * i] - Math.floor(pixel[2 * i] / tileSize) * tileSize;
+            double localY = pixel[2 * i + 1] - Math.floor(pixel[2 * i + 1] / tileSize) * tileSize;
+            if (localX > minDistance && localX < tileSize - minDistance && localY > minDistance && localY < tileSize - minDistance) {
                 continue;
             }
-            if(!isInRegion(bounds,marker.m_center)){
-                List<I_SortableMapElement> markerElements=marker.getElements();
-                for(I_SortableMapElement element: markerElements){
-                    if(!isInRegion(bounds,element.getLatLng())){
-                        ret.put(element,false);
+            int cx = (int) Math.floor(pixel[2 * i] / cellSize);
+            int cy = (int) Math.floor(pixel[2 * i + 1] / cellSize);
+            for (int a = cx - 1; a <= cx + 1; a++) {
+                for (int b = cy - 1; b <= cy + 1; b++) {
+                    IntList cell = cells.get(((long) a << 32) | (b & 0xffffffffL));
+                    for (int k = 0; cell != null && k < cell.size(); k++) {
+                        int j = cell.get(k);
+                        double dx = pixel[2 * i] - pixel[2 * j], dy = pixel[2 * i + 1] - pixel[2 * j + 1];
+                        if (clusterTile.get(i) != clusterTile.get(j) && dx * dx + dy * dy <= (double) minDistance * minDistance) {
+                            joinOwner(owner, i, j, keys, clusterTile, clusterIndex);
+                        }
                     }
                 }
             }
+            long cellKey = ((long) cx << 32) | (cy & 0xffffffffL);
+            IntList cell = cells.get(cellKey);
+            if (cell == null) {
+                cell = new IntList(2);
+                cells.put(cellKey, cell);
+            }
+            cell.add(i);
+        }
+        Map<Integer, IntList> groups = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            int o = findOwner(owner, i);
+            if (o != i) {
+                IntList group = groups.get(o);
+                if (group == null) {
+                    group = new IntList(2);
+                    groups.put(o, group);
+                }
+                group.add(i);
+            }
         }
-        return ret;
 
-/*            Map<I_SortableMapElement, Boolean> ret = new HashMap<>();
-            LatLngBounds bounds = projection.getVisibleRegion().latLngBounds;
-            Map<A_MapMarker,Boolean> checkedMarker= new HashMap<A_MapMarker,Boolean>();
-            for (I_SortableMapElement element : m_elements) {
-                boolean isContained = false;
-                A_MapMarker marker = m_markerMap.get(element);
-                if (marker != null) {
-                    //It is displayed in a marker currently
-                    if (!checkedMarker.containsKey(marker)) {
-                        checkedMarker.put(marker, Boolean.valueOf(bounds.contains(new LatLngGoogleWrapper(marker.m_center).toOtherLatLng())));
-                    }
-                    isContained = checkedMarker.get(marker).booleanValue();
-                    if (isContained) {
-                        continue;
+        Map<Long, A_MapMarker[]> tileMarker = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            if (findOwner(owner, i) != i) {
+                continue;
+            }
+            ClusterCache.Entry entry = entries.get(clusterTile.get(i));
+            long key = keys.get(clusterTile.get(i));
+            int index = clusterIndex.get(i);
+            A_MapMarker[] old = m_tileMarker.get(key);
+            A_MapMarker marker = null;
+            if (old != null) {
+                marker = old[index];
+                old[index] = null;
+            }
+            IntList group = groups.get(i);
+            if (marker == null || group != null || marker.getHandles().size() != entry.getSize(index)) {
+                IntList handles = entry.getHandles(index);
+                LatLng center = entry.getCenter(index);
+                if (group != null) {
+                    //Center of the joined clusters, weighted by their number of elements
+                    double[] sum = A_MapMarker.calcUnitVector(center);
+                    for (int d = 0; d < 3; d++) {
+                        sum[d] *= entry.getSize(index);
                     }
-                    //Not contained -> remove
-                    ret.put(element, false);
-                    continue;
-                } else {
-                    //Elements, which are not represented as marker
-                    isContained = bounds.contains(new LatLngGoogleWrapper(element.getLatLng()).toOtherLatLng());
-                    if (isContained) {
-                        if (!element.getLatLng().equals(new LatLng(0, 0))) {
-                            ret.put(element, true);
+                    for (int g = 0; g < group.size(); g++) {
+                        ClusterCache.Entry other = entries.get(clusterTile.get(group.get(g)));
+                        int otherIndex = clusterIndex.get(group.get(g));
+                        handles.addAll(other.getHandles(otherIndex));
+                        double[] v = A_MapMarker.calcUnitVector(other.getCenter(otherIndex));
+                        for (int d = 0; d < 3; d++) {
+                            sum[d] += v[d] * other.getSize(otherIndex);
                         }
                     }
+                    center = new LatLng(90 - Math.toDegrees(Math.acos(sum[2] / Math.sqrt(sum[0] * sum[0] + sum[1] * sum[1] + sum[2] * sum[2]))),
+                            Math.toDegrees(Math.atan2(sum[1], sum[0])));
+                }
+                if (marker == null) {
+                    marker = getMarkerInstance();
+                    m_marker.add(marker);
+                } else {
+                    clearElementMarker(marker);
+                }
+                marker.setElements(handles, center);
+                for (int j = 0; j < handles.size(); j++) {
+                    m_elementMarker[handles.get(j)] = marker;
+                }
+            }
+            A_MapMarker[] current = tileMarker.get(key);
+            if (current == null) {
+                current = new A_MapMarker[entry.size()];
+                tileMarker.put(key, current);
+            }
+            current[index] = marker;
+        }
+        //Remaining marker are not visible any more
+        for (A_MapMarker[] old : m_tileMarker.values()) {
+            for (A_MapMarker marker : old) {
+                if (marker != null) {
+                    clearElementMarker(marker);
+                    marker.removeAll();
+                }
+            }
+        }
+        m_tileMarker = tileMarker;
+        Log.i(LOG_NAME, "updateMarkerFromTiles: " + (System.currentTimeMillis() - t) + " for " + entries.size() + " tiles, " + computed + " clustered");
+    }
+
+    /**
+     * Clusters the elements of a map tile.
+     *
+     * @param z     zoom level of the tile
+     * @param x     column of the tile
+     * @param y     row of the tile
+     * @param scale pixel per normalized Web-Mercator unit at the zoom level
+     * @return clusters of the tile
+     */
+    private ClusterCache.Entry clusterTile(int z, int x, int y, double scale) {
+        int n = 1 << z;
+        LatLngBounds tile = new LatLngBounds(
+                new LatLng(MercatorProjection.getLatitude((double) y / n), MercatorProjection.getLongitude((double) x / n)),
+                new LatLng(MercatorProjection.getLatitude((double) (y + 1) / n), MercatorProjection.getLongitude((double) (x + 1) / n)));
+        IntList candidates = new IntList();
+        m_store.query(tile, candidates);
+        candidates.sort();
+        //Elements on the border belong to one tile only
+        IntList handles = new IntList(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            int h = candidates.get(i);
+            if (getTileIndex(m_store.getX(h), n) == x && getTileIndex(m_store.getY(h), n) == y) {
+                handles.add(h);
+            }
+        }
+        return ClusterCache.cluster(m_store, handles, scale, getMinPixelDistance(), z, null);
+    }
+
+    /**
+     * Gets the tile column or row of a normalized Web-Mercator value.
+     *
+     * @param value normalized x or y
+     * @param n     number of tiles per axis
+     * @return tile index
+     */
+    private static int getTileIndex(double value, int n) {
+        return Math.max(0, Math.min(n - 1, (int) Math.floor(value * n)));
+    }
+
+    /**
+     * Finds the owner of a group of joined clusters.
+     *
+     * @param owner owner of each cluster
+     * @param i     cluster
+     * @return owner of the group
+     */
+    private static int findOwner(int[] owner, int i) {
+        while (owner[i] != i) {
+            owner[i] = owner[owner[i]];
+            i = owner[i];
+        }
+        return i;
+    }
+
+    /**
+     * Joins the groups of two clusters. The owner is the cluster with the lower tile key, or the lower index within
+     * the same tile, so it doesn't depend on the visible region.
+     *
+     * @param owner        owner of each cluster
+     * @param i            cluster
+     * @param j            cluster
+     * @param keys         tile keys
+     * @param clusterTile  tile of each cluster, index in keys
+     * @param clusterIndex index of each cluster in its tile
+     */
+    private static void joinOwner(int[] owner, int i, int j, List<Long> keys, IntList clusterTile, IntList clusterIndex) {
+        int a = findOwner(owner, i), b = findOwner(owner, j);
+        if (a == b) {
+            return;
+        }
+        long keyA = keys.get(clusterTile.get(a)), keyB = keys.get(clusterTile.get(b));
+        if (keyA < keyB || (keyA == keyB && clusterIndex.get(a) < clusterIndex.get(b))) {
+            owner[b] = a;
+        } else {
+            owner[a] = b;
+        }
+    }
+
+    /**
+     * Removes the marker from all of its elements, which still point to it.
+     *
+     * @param marker to be removed from its elements
+     */
+    private void clearElementMarker(A_MapMarker marker) {
+        IntList handles = marker.getHandles();
+        for (int j = 0; j < handles.size(); j++) {
+            if (m_elementMarker[handles.get(j)] == marker) {
+                m_elementMarker[handles.get(j)] = null;
+            }
+        }
+    }
+
+    /**
+     * Updates the marker list.
+     *
+     * @param elementsToAdd handles of elements to add to the map
+     * @param projection    of google map
+     */
+    private void updateMarker(IntList elementsToAdd, T projection) {
+        if (m_parallelClustering && elementsToAdd.size() >= PARALLEL_MIN_ELEMENTS && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (m_parallel == null) {
+                m_parallel = new ParallelClustering<>(this);
+            }
+            m_parallel.addElements(projection, elementsToAdd);
+            return;
+        }
+        if (!m_parallelClustering && m_parallel != null) {
+            m_parallel.shutdown();
+            m_parallel = null;
+        }
+        A_MapMarker instance = getMarkerInstance();
+        MarkerGrid grid = new MarkerGrid(getMinPixelDistance());
+        double[] pos = new double[2];
+        for (A_MapMarker marker : m_marker) {
+            if (marker.isOnMap()) {
+                marker.getCenterPixelPosition(projection, pos);
+                grid.put(marker, pos[0], pos[1]);
+            }
+        }
+        for (int i = 0; i < elementsToAdd.size(); i++) {
+            int h = elementsToAdd.get(i);
+            m_elementMarker[h] = instance.addElementToMarker(h, m_marker, grid, projection);
+        }
+    }
+
+    /**
+     * Updates the visible elements. Removes non visible elements from their marker and returns new elements which have
+     * to be sorted to markers.
+     *
+     * If the map was only panned, just the strips which got visible since the last update are checked for new
+     * elements, all elements of the overlapping region are on the map already. Likewise only the marker of elements
+     * within the strips which got hidden are checked for removal instead of all marker. A marker without an element in
+     * the hidden strips, whose center still left the bounds, is kept until the next update of the full bounds.
+     *
+     * @param bounds of the map
+     * @param pan    true, if the zoom did not change since the last update
+     * @return handles of the elements which have to be added to the map
+     */
+    private IntList updateVisibleElements(W bounds, boolean pan) {
+        IntList ret = new IntList();
+        LatLngBounds latLngBounds = toLatLngBounds(bounds);
+        double[] current = new double[]{latLngBounds.getNorthWest().latitude, latLngBounds.getNorthWest().longitude,
+                latLngBounds.getSouthEast().latitude, latLngBounds.getSouthEast().longitude};
+        IntList visible = new IntList();
+        Collection<A_MapMarker> candidates = m_marker;
+        if (pan && queryExposedStrips(m_lastBounds, current, visible)) {
+            IntList hidden = new IntList();
+            queryStrips(m_lastBounds, current, hidden);
+            Set<A_MapMarker> hiddenMarker = new LinkedHashSet<>();
+            for (int i = 0; i < hidden.size(); i++) {
+                A_MapMarker marker = m_elementMarker[hidden.get(i)];
+                if (marker != null) {
+                    hiddenMarker.add(marker);
                 }
             }
-            return ret;*/
+            candidates = hiddenMarker;
+        } else {
+            visible.clear();
+            m_store.query(latLngBounds, visible);
+        }
+        m_lastBounds = current;
+        visible.sort();
+        for (int i = 0; i < visible.size(); i++) {
+            int h = visible.get(i);
+            //Strips may overlap at their borders
+            if (m_elementMarker[h] == null && (i == 0 || visible.get(i - 1) != h)) {
+                ret.add(h);
+            }
+        }
+        IntList removed = new IntList();
+        for (A_MapMarker marker : candidates) {
+            if (Double.isNaN(marker.m_center.latitude) || Double.isNaN(marker.m_center.longitude)) {
+                Log.w(LOG_NAME, "Marker has Nan value..");
+                continue;
+            }
+            if (!latLngBounds.contains(marker.m_center)) {
+                marker.removeElementsOutside(latLngBounds, removed);
+                marker.refresh();
+            }
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            m_elementMarker[removed.get(i)] = null;
+        }
+        Log.i(LOG_NAME, ret.size() + " Elements added, " + removed.size() + " Elements removed");
+        return ret;
+    }
+
+    /**
+     * Adds the elements within the parts of the current bounds which are not covered by the last bounds to result.
+     *
+     * @param last    bounds of the last update (north, west, south, east)
+     * @param current bounds (north, west, south, east)
+     * @param result  list to add the handles to
+     * @return false, if the strips can't be determined (no last bounds, no overlap or Datumsgrenze), result has to be
+     * filled by a query of the full bounds then
+     */
+    private boolean queryExposedStrips(double[] last, double[] current, IntList result) {
+        if (last == null) {
+            return false;
+        }
+        double north = current[0], west = current[1], south = current[2], east = current[3];
+        double lastNorth = last[0], lastWest = last[1], lastSouth = last[2], lastEast = last[3];
+        if (west > east || lastWest > lastEast) {
+            //Datumsgrenze
+            return false;
+        }
+        if (south > lastNorth || north < lastSouth || west > lastEast || east < lastWest) {
+            return false;
+        }
+        queryStrips(current, last, result);
+        return true;
+    }
 
+    /**
+     * Adds the elements within the parts of the outer bounds which are not covered by the inner bounds to result. Both
+     * bounds have to overlap and must not cross the Datumsgrenze, see queryExposedStrips.
+     *
+     * @param outer  bounds to take the strips from (north, west, south, east)
+     * @param inner  bounds to leave out (north, west, south, east)
+     * @param result list to add the handles to
+     */
+    private void queryStrips(double[] outer, double[] inner, IntList result) {
+        double north = outer[0], west = outer[1], south = outer[2], east = outer[3];
+        double innerNorth = inner[0], innerWest = inner[1], innerSouth = inner[2], innerEast = inner[3];
+        if (north > innerNorth) {
+            m_store.query(new LatLngBounds(new LatLng(north, west), new LatLng(innerNorth, east)), result);
+        }
+        if (south < innerSouth) {
+            m_store.query(new LatLngBounds(new LatLng(innerSouth, west), new LatLng(south, east)), result);
+        }
+        double midNorth = Math.min(north, innerNorth);
+        double midSouth = Math.max(south, innerSouth);
+        if (west < innerWest) {
+            m_store.query(new LatLngBounds(new LatLng(midNorth, west), new LatLng(midSouth, innerWest)), result);
+        }
+        if (east > innerEast) {
+            m_store.query(new LatLngBounds(new LatLng(midNorth, innerEast), new LatLng(midSouth, east)), result);
+        }
     }
-}
\ No newline at end of file
+
+    protected abstract W getVisibleRegion(T projection);
+
+    /**
+     * Converts the bounds of the map to a LatLngBounds object of this package.
+     *
+     * @param bounds of the map
+     * @return LatLngBounds with north west and south east corner
+     */
+    protected abstract LatLngBounds toLatLngBounds(W bounds);
+}
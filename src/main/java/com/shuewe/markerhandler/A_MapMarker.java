@@ -13,10 +13,7 @@ package com.shuewe.markerhandler;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -34,6 +31,16 @@ public abstract class A_MapMarker<T, S, U, V> {
      */
     protected LatLng m_center;
 
+    /**
+     * Center of marker in normalized Web-Mercator space.
+     */
+    protected double m_centerX, m_centerY;
+
+    /**
+     * Buffer for pixel positions, to avoid allocations in loops of the update thread.
+     */
+    private final double[] m_pixelBuffer = new double[2];
+
     /**
      * Cursor iterating through all items of object.
      */
@@ -66,6 +73,22 @@ public abstract class A_MapMarker<T, S, U, V> {
      */
     private List<I_SortableMapElement> m_elements = new ArrayList<>();
 
+    /**
+     * Handles of the elements in the element store of the handler (same order as m_elements), -1 for elements which are
+     * not part of the store.
+     */
+    private IntList m_handles = new IntList(4);
+
+    /**
+     * Sum of the unit vectors of all elements, used to calculate the center.
+     */
+    private double m_sumX, m_sumY, m_sumZ;
+
+    /**
+     * Indicates if the sum of the unit vectors has to be recalculated from all elements.
+     */
+    private boolean m_sumInvalid = false;
+
     protected MarkerTextGenerator m_textGenerator;
 
 
@@ -147,20 +170,29 @@ public abstract class A_MapMarker<T, S, U, V> {
     }
 
     /**
-     * Handles changed zoom and returns a set of elements which have to shown seperately on the map.
+     * Gets the handles of the elements represented by this marker.
+     *
+     * @return handles in the element store of the handler, -1 for elements which are not part of the store
+     */
+    IntList getHandles() {
+        return m_handles;
+    }
+
+    /**
+     * Handles changed zoom and returns the elements which have to shown seperately on the map.
+     * The marker of the elements in the handler get updated.
      *
      * @param projection from google map
      * @param marker     List of all A_MapMarker shown on map. Gets updated
      * @param mode       A_Handler.ZOOM_IN or A_Handler.ZOOM_OUT
-     * @param markerMap  map<I_SortableMapElement,A_MapMarker> to be updated
-     * @return Set of I_SortableMapElement which should now be visible on map
+     * @return handles of the elements which should now be visible on map
      */
-    public Set<I_SortableMapElement> handleZoomChange(U projection, List<A_MapMarker> marker, int mode, Map<I_SortableMapElement, A_MapMarker> markerMap) {
+    public IntList handleZoomChange(U projection, List<A_MapMarker> marker, int mode) {
         if (mode == A_Handler.ZOOM_OUT) {
-            adjustMarkerZoomOut(projection, marker, markerMap);
-            return new HashSet<>();
+            adjustMarkerZoomOut(projection, marker);
+            return new IntList();
         }
-        return adjustMarkerZoomIn(projection, marker, markerMap);
+        return adjustMarkerZoomIn(projection, marker);
     }
 
     public void setColor(A_MapMarker.COLOR color){
@@ -192,53 +224,146 @@ public abstract class A_MapMarker<T, S, U, V> {
      * @param element to be added
      */
     protected void addElement(I_SortableMapElement element) {
+        addElement(element, m_handler.getStore().getHandle(element));
+    }
+
+    /**
+     * Adds an element of the element store.
+     *
+     * @param handle of the element
+     */
+    void addElement(int handle) {
+        addElement(m_handler.getStore().getElement(handle), handle);
+    }
+
+    private void addElement(I_SortableMapElement element, int handle) {
         m_elements.add(element);
+        m_handles.add(handle);
+        addToSum(element, handle, 1);
         m_isTouched = true;
     }
 
     /**
-     * Returns a A_MapMarker object containing given I_SortableMapElement.
-     * Looks if element has to be added to an existing marker object in given list, or if a marker object has to be generated.
-     * Edits or adds marker in the given list.
+     * Returns a A_MapMarker object containing given element.
+     * Looks up the nearest marker object within the min pixel distance in the given grid, or generates a new marker object.
+     * Edits or adds marker in the given list and keeps the grid up to date.
+     * <p>
+     * Note: Earlier versions added the element to the first marker in markerList within the min pixel distance.
+     * If several marker are in reach, the element now joins the nearest one, so the resulting clusters can differ
+     * from the ones of earlier versions. The nearest marker does not depend on the order of markerList, which the
+     * grid lookup and the parallel clustering rely on.
      *
-     * @param element    to be added to markerList
+     * @param handle     of the element to be added to markerList
      * @param markerList current list of marker
+     * @param grid       containing the pixel positions of all marker in markerList which are on the map
      * @param projection from google map
      * @return the A_MapMarker object holding the given element
      */
-    protected A_MapMarker addElementToMarker(I_SortableMapElement element, List<A_MapMarker> markerList, U projection) {
-        for (A_MapMarker marker : markerList) {
-            if (!marker.isOnMap()) {
-                continue;
-            }
-            if (marker.getPixelDistance(element.getLatLng(), projection) <= m_handler.getMinPixelDistance()) {
-                marker.addElement(element);
-                marker.refresh();
-                return marker;
-            }
+    protected A_MapMarker addElementToMarker(int handle, List<A_MapMarker> markerList, MarkerGrid grid, U projection) {
+        double[] pos = m_pixelBuffer;
+        getPixelPosition(handle, projection, pos);
+        A_MapMarker marker = grid.findNearest(pos[0], pos[1], m_handler.getMinPixelDistance());
+        if (marker == null) {
+            marker = getInstance();
+            markerList.add(marker);
         }
-        A_MapMarker ret = getInstance();
-        ret.addElement(element);
-        ret.refresh();
-        markerList.add(ret);
-        return ret;
+        marker.addElement(handle);
+        marker.refresh();
+        marker.getCenterPixelPosition(projection, pos);
+        grid.put(marker, pos[0], pos[1]);
+        return marker;
+    }
+
+    /**
+     * Calculates the squared distance in pixels of a LatLng position to the center of this marker.
+     * Compare it with the squared threshold, no square root needed.
+     *
+     * @param pos        LatLng from second position
+     * @param projection from google map
+     * @return the squared distance in pixel
+     */
+    protected double getSquaredPixelDistance(LatLng pos, U projection) {
+        double[] buffer = m_pixelBuffer;
+        getPixelPosition(pos.latitude, pos.longitude, projection, buffer);
+        double x = buffer[0];
+        double y = buffer[1];
+        getCenterPixelPosition(projection, buffer);
+        return (x - buffer[0]) * (x - buffer[0]) + (y - buffer[1]) * (y - buffer[1]);
     }
 
     /**
-     * Calculates the distance in pixels of two LatLng positions on a map.
+     * Calculates the distance in pixels of a LatLng position to the center of this marker.
      *
      * @param pos        LatLng from second position
      * @param projection from google map
      * @return the distance in pixel
      */
-    protected abstract double getPixelDistance(LatLng pos, U projection);
+    protected double getPixelDistance(LatLng pos, U projection) {
+        return Math.sqrt(getSquaredPixelDistance(pos, projection));
+    }
+
+    /**
+     * Calculates the position in pixels of a position on the map.
+     *
+     * @param latitude   of the position
+     * @param longitude  of the position
+     * @param projection from google map
+     * @param out        array to write x and y pixel value to
+     */
+    protected abstract void getPixelPosition(double latitude, double longitude, U projection, double[] out);
+
+    /**
+     * Calculates the position in pixels of an element of the element store.
+     * Override to use the normalized Web-Mercator position of the store instead of latitude and longitude.
+     *
+     * @param handle     of the element
+     * @param projection from google map
+     * @param out        array to write x and y pixel value to
+     */
+    protected void getPixelPosition(int handle, U projection, double[] out) {
+        ElementStore store = m_handler.getStore();
+        getPixelPosition(store.getLatitude(handle), store.getLongitude(handle), projection, out);
+    }
+
+    /**
+     * Calculates the positions in pixels of multiple elements of the element store.
+     * Override to project all positions in one batch.
+     *
+     * @param handles    of the elements, negative handles result in NaN
+     * @param projection from google map
+     * @param out        array to write x and y pixel values alternating to, at least 2*handles.size() long
+     */
+    protected void getPixelPositions(IntList handles, U projection, double[] out) {
+        double[] pos = m_pixelBuffer;
+        for (int i = 0; i < handles.size(); i++) {
+            int h = handles.get(i);
+            if (h < 0) {
+                out[2 * i] = out[2 * i + 1] = Double.NaN;
+                continue;
+            }
+            getPixelPosition(h, projection, pos);
+            out[2 * i] = pos[0];
+            out[2 * i + 1] = pos[1];
+        }
+    }
+
+    /**
+     * Calculates the position in pixels of the center of this marker.
+     * Override to use m_centerX and m_centerY instead of m_center.
+     *
+     * @param projection from google map
+     * @param out        array to write x and y pixel value to
+     */
+    protected void getCenterPixelPosition(U projection, double[] out) {
+        getPixelPosition(m_center.latitude, m_center.longitude, projection, out);
+    }
 
     /**
      * Updates m_center
      */
     protected void refresh() {
         if (m_isTouched) {
-            m_center = calcCenter();
+            setCenter(calcCenter());
         }
     }
 
@@ -289,23 +414,89 @@ public abstract class A_MapMarker<T, S, U, V> {
     }
 
     /**
-     * Removes given element.
+     * Removes all elements of the element store which are not in the given bounds.
      *
-     * @param element to be removed
-     */
-    void removeElement(I_SortableMapElement element) {
-        m_isTouched = true;
-        m_elements.remove(element);
+     * @param bounds  of the map
+     * @param removed list to add the handles of removed elements to
+     */
+    void removeElementsOutside(LatLngBounds bounds, IntList removed) {
+        ElementStore store = m_handler.getStore();
+        int j = 0;
+        for (int i = 0; i < m_handles.size(); i++) {
+            int h = m_handles.get(i);
+            if (h < 0 || bounds.contains(store.getLatitude(h), store.getLongitude(h))) {
+                keep(i, j++);
+            } else {
+                removed.add(h);
+                addToSum(m_elements.get(i), h, -1);
+            }
+        }
+        truncate(j);
     }
 
     /**
-     * Adds list of I_SortableMapElement to the marker.
+     * Removes the elements which were removed from the element store.
      *
-     * @param elements to be added
+     * @param removed list to add the handles of the removed elements to
+     */
+    void removeDeletedElements(IntList removed) {
+        ElementStore store = m_handler.getStore();
+        int j = 0;
+        for (int i = 0; i < m_handles.size(); i++) {
+            int h = m_handles.get(i);
+            if (h < 0 || !store.isRemoved(h)) {
+                keep(i, j++);
+            } else {
+                removed.add(h);
+                addToSum(m_elements.get(i), h, -1);
+            }
+        }
+        truncate(j);
+    }
+
+    /**
+     * Moves the element at position from to position to. Used to remove elements in one pass.
      */
-    private void addElements(List<I_SortableMapElement> elements) {
-        m_elements.addAll(elements);
-        m_isTouched = true;
+    private void keep(int from, int to) {
+        if (from != to) {
+            m_handles.set(to, m_handles.get(from));
+            m_elements.set(to, m_elements.get(from));
+        }
+    }
+
+    /**
+     * Drops all elements behind the given size.
+     */
+    private void truncate(int size) {
+        if (size < m_handles.size()) {
+            m_handles.truncate(size);
+            m_elements.subList(size, m_elements.size()).clear();
+            m_isTouched = true;
+            if (size == 0) {
+                m_sumX = m_sumY = m_sumZ = 0;
+            }
+        }
+    }
+
+    /**
+     * Adds or subtracts the unit vector of an element to the sum of unit vectors.
+     *
+     * @param element to be added or removed
+     * @param handle  of the element, -1 if element is not in the element store
+     * @param sign    1 to add, -1 to subtract
+     */
+    private void addToSum(I_SortableMapElement element, int handle, int sign) {
+        if (handle < 0) {
+            double[] v = calcUnitVector(element.getLatLng());
+            m_sumX += sign * v[0];
+            m_sumY += sign * v[1];
+            m_sumZ += sign * v[2];
+            return;
+        }
+        ElementStore store = m_handler.getStore();
+        m_sumX += sign * store.getUnitX(handle);
+        m_sumY += sign * store.getUnitY(handle);
+        m_sumZ += sign * store.getUnitZ(handle);
     }
 
     /**
@@ -313,11 +504,18 @@ public abstract class A_MapMarker<T, S, U, V> {
      *
      * @param markerList to be added
      */
-    private void addMarker(List<A_MapMarker> markerList) {
+    void addMarker(List<A_MapMarker> markerList) {
         boolean isSelected=getColor().equals(m_handler.getActiveColor());
         for (A_MapMarker marker : markerList) {
             isSelected = isSelected || marker.getColor().equals(m_handler.getActiveColor());
-            addElements(marker.getElements());
+            m_elements.addAll(marker.getElements());
+            m_handles.addAll(marker.m_handles);
+            if (marker.m_sumInvalid) {
+                m_sumInvalid = true;
+            }
+            m_sumX += marker.m_sumX;
+            m_sumY += marker.m_sumY;
+            m_sumZ += marker.m_sumZ;
             marker.removeAll();
         }
         m_isTouched = true;
@@ -332,26 +530,19 @@ public abstract class A_MapMarker<T, S, U, V> {
      *
      * @param projection object
      * @param markerList list of all A_MapMarker to be updated
-     * @param markerMap  map<I_SortableMapElement,A_MapMarker> to be updated
-     * @return Set of I_SortableMapElement which should now be visible on map
+     * @return handles of the elements which should now be visible on map
      */
-    private Set<I_SortableMapElement> adjustMarkerZoomIn(U projection, List<A_MapMarker> markerList, Map<I_SortableMapElement, A_MapMarker> markerMap) {
+    private IntList adjustMarkerZoomIn(U projection, List<A_MapMarker> markerList) {
 
-        Set<I_SortableMapElement> ret = new HashSet<>();
+        IntList ret = new IntList();
         Log.d("Zoom", "in");
+        int start;
         for (A_MapMarker marker : markerList) {
             if (marker.isOnMap()) {
-                List<I_SortableMapElement> elementsToRemove = new ArrayList<>();
-                List<I_SortableMapElement> elements = marker.getElements();
-                for (I_SortableMapElement element : elements) {
-                    if (marker.getPixelDistance(element.getLatLng(), projection) > m_handler.getMinPixelDistance()) {
-                        markerMap.put(element, null);
-                        ret.add(element);
-                        elementsToRemove.add(element);
-                    }
-                }
-                for (I_SortableMapElement element : elementsToRemove) {
-                    marker.removeElement(element);
+                start = ret.size();
+                marker.removeElementsFartherThan(m_handler.getMinPixelDistance(), projection, ret);
+                for (int i = start; i < ret.size(); i++) {
+                    m_handler.setElementMarker(ret.get(i), null);
                 }
                 marker.refresh();
             }
@@ -359,53 +550,99 @@ public abstract class A_MapMarker<T, S, U, V> {
         return ret;
     }
 
+    /**
+     * Removes all elements of the element store which are farther away from the center than the given distance.
+     *
+     * @param distance   max pixel distance
+     * @param projection object
+     * @param removed    list to add the handles of removed elements to
+     */
+    private void removeElementsFartherThan(double distance, U projection, IntList removed) {
+        getCenterPixelPosition(projection, m_pixelBuffer);
+        double centerX = m_pixelBuffer[0];
+        double centerY = m_pixelBuffer[1];
+        double max = distance * distance;
+        double[] pos = new double[2 * m_handles.size()];
+        getPixelPositions(m_handles, projection, pos);
+        int j = 0;
+        for (int i = 0; i < m_handles.size(); i++) {
+            int h = m_handles.get(i);
+            if (h >= 0) {
+                double dx = pos[2 * i] - centerX;
+                double dy = pos[2 * i + 1] - centerY;
+                if (dx * dx + dy * dy > max) {
+                    removed.add(h);
+                    addToSum(m_elements.get(i), h, -1);
+                    continue;
+                }
+            }
+            keep(i, j++);
+        }
+        truncate(j);
+    }
+
     /**
      * Adjustes marker when user zooms out.
+     * Each marker (in list order) takes over all remaining marker within the min pixel distance to its center. The
+     * candidates are looked up in a grid of the marker positions and only the elements of merged marker get repointed.
      *
      * @param projection object
      * @param markerList list of all A_MapMarker to be updated
-     * @param markerMap  map<I_SortableMapElement,A_MapMarker> to be updated
      */
-    private void adjustMarkerZoomOut(U projection, List<A_MapMarker> markerList, Map<I_SortableMapElement, A_MapMarker> markerMap) {
+    private void adjustMarkerZoomOut(U projection, List<A_MapMarker> markerList) {
         Log.d("Zoom", "out");
-        for (int i = 0; i < markerList.size(); i++) {
-            if (markerList.get(i).isOnMap()) {
-                List<A_MapMarker> collect = new ArrayList<>();
-                for (int j = i + 1; j < markerList.size(); j++) {
-                    if (markerList.get(i).getPixelDistance(markerList.get(j).m_center, projection) <= m_handler.getMinPixelDistance()) {
-                        collect.add(markerList.get(j));
-                    }
-                }
-                markerList.get(i).addMarker(collect);
-                for (Map.Entry<I_SortableMapElement, A_MapMarker> entry : markerMap.entrySet()) {
-                    if (collect.contains(entry.getValue())) {
-                        markerMap.put(entry.getKey(), markerList.get(i));
+        int minDistance = m_handler.getMinPixelDistance();
+        MarkerGrid grid = new MarkerGrid(minDistance);
+        double[] pos = m_pixelBuffer;
+        for (A_MapMarker marker : markerList) {
+            if (marker.isOnMap()) {
+                marker.getCenterPixelPosition(projection, pos);
+                grid.put(marker, pos[0], pos[1]);
+            }
+        }
+        List<A_MapMarker> collect = new ArrayList<>();
+        for (A_MapMarker marker : markerList) {
+            if (!marker.isOnMap()) {
+                continue;
+            }
+            collect.clear();
+            marker.getCenterPixelPosition(projection, pos);
+            grid.findWithin(pos[0], pos[1], minDistance, collect);
+            collect.remove(marker);
+            if (collect.isEmpty()) {
+                continue;
+            }
+            for (A_MapMarker merged : collect) {
+                grid.remove(merged);
+                IntList handles = merged.getHandles();
+                for (int i = 0; i < handles.size(); i++) {
+                    if (handles.get(i) >= 0) {
+                        m_handler.setElementMarker(handles.get(i), marker);
                     }
                 }
             }
+            marker.addMarker(collect);
+            marker.refresh();
+            //The center moved by the merge, later lookups have to find the marker at its new position
+            marker.getCenterPixelPosition(projection, pos);
+            grid.put(marker, pos[0], pos[1]);
         }
     }
 
     /**
-     * Estimates the center.
+     * Estimates the center from the sum of the unit vectors of all elements.
      *
      * @return LatLng of center
      */
     private LatLng calcCenter() {
-
-        double x = 0, y = 0, z = 0;
-        for (I_SortableMapElement element : m_elements) {
-            LatLng latLng = element.getLatLng();
-            double kuglat = Math.toRadians(90 - latLng.latitude);
-            double kuglng = Math.toRadians(latLng.longitude);
-            x += Math.sin(kuglat) * Math.cos(kuglng);
-            y += Math.sin(kuglat) * Math.sin(kuglng);
-            z += Math.cos(kuglat);
+        if (m_sumInvalid) {
+            m_sumX = m_sumY = m_sumZ = 0;
+            for (int i = 0; i < m_handles.size(); i++) {
+                addToSum(m_elements.get(i), m_handles.get(i), 1);
+            }
+            m_sumInvalid = false;
         }
-
-        x = x / m_elements.size();
-        y = y / m_elements.size();
-        z = z / m_elements.size();
+        double x = m_sumX, y = m_sumY, z = m_sumZ;
 
         double centerlat = 90 - Math.toDegrees(Math.acos(z / Math.sqrt(x * x + y * y + z * z)));
         double centerlng = Math.toDegrees(Math.atan2(y, x));
@@ -413,11 +650,56 @@ public abstract class A_MapMarker<T, S, U, V> {
         return new LatLng(centerlat, centerlng);
     }
 
+    /**
+     * Sets m_center and its normalized Web-Mercator position.
+     *
+     * @param center new center
+     */
+    private void setCenter(LatLng center) {
+        m_center = center;
+        m_centerX = MercatorProjection.getNormalizedX(center.longitude);
+        m_centerY = MercatorProjection.getNormalizedY(center.latitude);
+    }
+
+    /**
+     * Calculates the unit vector of a position on the sphere.
+     *
+     * @param latLng position
+     * @return array with x, y and z
+     */
+    static double[] calcUnitVector(LatLng latLng) {
+        double kuglat = Math.toRadians(90 - latLng.latitude);
+        double kuglng = Math.toRadians(latLng.longitude);
+        double sinLat = Math.sin(kuglat);
+        return new double[]{sinLat * Math.cos(kuglng), sinLat * Math.sin(kuglng), Math.cos(kuglat)};
+    }
+
+    /**
+     * Replaces all elements of the marker by elements of the element store.
+     *
+     * @param handles of the new elements of the marker
+     * @param center  of the elements
+     */
+    void setElements(IntList handles, LatLng center) {
+        ElementStore store = m_handler.getStore();
+        m_handles = handles;
+        m_elements = new ArrayList<>(handles.size());
+        for (int i = 0; i < handles.size(); i++) {
+            m_elements.add(store.getElement(handles.get(i)));
+        }
+        setCenter(center);
+        m_sumInvalid = true;
+        m_isTouched = true;
+    }
+
     /**
      * Removes all elements.
      */
-    private void removeAll() {
+    void removeAll() {
         m_elements.clear();
+        m_handles.clear();
+        m_sumX = m_sumY = m_sumZ = 0;
+        m_sumInvalid = false;
         m_isTouched = true;
     }
 
@@ -21,19 +21,39 @@ public class CanvasMarker extends A_MapMarker<String, Canvas,MercatorProjection,
 
     @Override
     public String setMarker(Canvas map, COLOR c) {
-        Paint p = new Paint();
-        p.setStyle(Paint.Style.FILL);
-        p.setColor(((HandlerCanvas)m_handler).getColorMap().get(c));
-        MercatorProjection.Coordinates coor = ((HandlerCanvas) m_handler).getProjection().getCoordinates(m_center);
-        map.drawCircle((float)coor.getX(),(float)coor.getY(), (float) ((HandlerCanvas)m_handler).getPointRadius(),p);
+        m_isTouched = false;
+        if (map == null) {
+            return null;
+        }
+        HandlerCanvas handler = (HandlerCanvas) m_handler;
+        Paint p = handler.getFillPaint(handler.getColorMap().get(c));
+        MercatorProjection projection = handler.getProjection();
+        map.drawCircle((float)projection.getPixelX(m_centerX),(float)projection.getPixelY(m_centerY), (float) handler.getPointRadius(),p);
         return null;
     }
 
     @Override
-    protected double getPixelDistance(LatLng pos, MercatorProjection projection) {
-        MercatorProjection.Coordinates coorPoint = projection.getCoordinates(pos);
-        MercatorProjection.Coordinates coorCenter = projection.getCoordinates(m_center);
-        return Math.sqrt((coorPoint.getX() - coorCenter.getX()) * (coorPoint.getX() - coorCenter.getX()) + (coorPoint.getY() - coorCenter.getY()) * (coorPoint.getY() - coorCenter.getY()) );
+    protected void getPixelPosition(double latitude, double longitude, MercatorProjection projection, double[] out) {
+        out[0] = projection.getPixelX(MercatorProjection.getNormalizedX(longitude));
+        out[1] = projection.getPixelY(MercatorProjection.getNormalizedY(latitude));
+    }
+
+    @Override
+    protected void getPixelPosition(int handle, MercatorProjection projection, double[] out) {
+        ElementStore store = m_handler.getStore();
+        out[0] = projection.getPixelX(store.getX(handle));
+        out[1] = projection.getPixelY(store.getY(handle));
+    }
+
+    @Override
+    protected void getPixelPositions(IntList handles, MercatorProjection projection, double[] out) {
+        m_handler.getStore().project(projection, handles, out);
+    }
+
+    @Override
+    protected void getCenterPixelPosition(MercatorProjection projection, double[] out) {
+        out[0] = projection.getPixelX(m_centerX);
+        out[1] = projection.getPixelY(m_centerY);
     }
 
     @Override
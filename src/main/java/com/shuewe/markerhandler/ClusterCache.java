@@ -0,0 +1,439 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of the incremental clustering per integer zoom level, so returning to a recently shown zoom level doesn't
+ * need to cluster all visible elements again.
+ * <p>
+ * The least recently used zoom levels are evicted, if the cache exceeds its memory bound. Entries of an older dataset
+ * version (see invalidate) are never returned.
+ */
+class ClusterCache {
+
+    /**
+     * Default memory bound in bytes.
+     */
+    static final long DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Number of elements between two checks for cancellation by cluster.
+     */
+    private static final int CANCEL_CHECK_INTERVAL = 1024;
+
+    /**
+     * Clusters of one zoom level, stored in primitive arrays.
+     */
+    static class Entry {
+
+        /**
+         * Zoom of the map the clusters were computed for.
+         */
+        private final float m_zoom;
+
+        /**
+         * Centers of the clusters.
+         */
+        private final double[] m_latitude, m_longitude;
+
+        /**
+         * Start of the handles of each cluster in m_handles, with one additional entry for the end of the last one.
+         */
+        private final int[] m_offsets;
+
+        /**
+         * Handles of the elements of all clusters.
+         */
+        private final int[] m_handles;
+
+        /**
+         * Creates an entry from the marker which are on the map.
+         *
+         * @param zoom   of the map
+         * @param marker list of marker
+         */
+        Entry(float zoom, List<A_MapMarker> marker) {
+            m_zoom = zoom;
+            int count = 0, handles = 0;
+            for (A_MapMarker m : marker) {
+                if (m.isOnMap()) {
+                    count++;
+                    handles += m.getHandles().size();
+                }
+            }
+            m_latitude = new double[count];
+            m_longitude = new double[count];
+            m_offsets = new int[count + 1];
+            m_handles = new int[handles];
+            int i = 0, offset = 0;
+            for (A_MapMarker m : marker) {
+                if (!m.isOnMap()) {
+                    continue;
+                }
+                IntList h = m.getHandles();
+                m_latitude[i] = m.m_center.latitude;
+                m_longitude[i] = m.m_center.longitude;
+                m_offsets[i] = offset;
+                for (int j = 0; j < h.size(); j++) {
+                    m_handles[offset++] = h.get(j);
+                }
+                i++;
+            }
+            m_offsets[count] = offset;
+        }
+
+        /**
+         * Creates an entry from clusters computed elsewhere.
+         *
+         * @param zoom      of the map
+         * @param latitude  of the cluster centers
+         * @param longitude of the cluster centers
+         * @param offsets   start of the handles of each cluster, with one additional entry for the end of the last one
+         * @param handles   of the elements of all clusters
+         */
+        Entry(float zoom, double[] latitude, double[] longitude, int[] offsets, int[] handles) {
+            m_zoom = zoom;
+            m_latitude = latitude;
+            m_longitude = longitude;
+            m_offsets = offsets;
+            m_handles = handles;
+        }
+
+        /**
+         * Gets the zoom of the map the clusters were computed for.
+         *
+         * @return zoom
+         */
+        float getZoom() {
+            return m_zoom;
+        }
+
+        /**
+         * Number of clusters.
+         *
+         * @return size
+         */
+        int size() {
+            return m_latitude.length;
+        }
+
+        /**
+         * Gets the center of a cluster.
+         *
+         * @param index of the cluster
+         * @return center
+         */
+        LatLng getCenter(int index) {
+            return new LatLng(m_latitude[index], m_longitude[index]);
+        }
+
+        /**
+         * Gets the number of elements of a cluster.
+         *
+         * @param index of the cluster
+         * @return number of elements
+         */
+        int getSize(int index) {
+            return m_offsets[index + 1] - m_offsets[index];
+        }
+
+        /**
+         * Gets the handles of the elements of a cluster.
+         *
+         * @param index of the cluster
+         * @return new list of handles
+         */
+        IntList getHandles(int index) {
+            IntList ret = new IntList(m_offsets[index + 1] - m_offsets[index]);
+            for (int i = m_offsets[index]; i < m_offsets[index + 1]; i++) {
+                ret.add(m_handles[i]);
+            }
+            return ret;
+        }
+
+        /**
+         * Estimated memory usage.
+         *
+         * @return size in bytes
+         */
+        long getBytes() {
+            return 8L * (m_latitude.length + m_longitude.length) + 4L * (m_offsets.length + m_handles.length) + 64;
+        }
+    }
+
+    /**
+     * Entries by integer zoom level, in access order.
+     */
+    private final LinkedHashMap<Integer, Entry> m_entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Memory bound in bytes.
+     */
+    private long m_maxBytes;
+
+    /**
+     * Estimated memory usage of all entries in bytes.
+     */
+    private long m_bytes;
+
+    /**
+     * Version of the dataset, increased by invalidate.
+     */
+    private int m_version;
+
+    /**
+     * Public constructor.
+     *
+     * @param maxBytes memory bound in bytes
+     */
+    ClusterCache(long maxBytes) {
+        m_maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets the version of the dataset, to be passed to put.
+     *
+     * @return version
+     */
+    synchronized int getVersion() {
+        return m_version;
+    }
+
+    /**
+     * Stores the clusters of a zoom level, replacing older ones of the same integer zoom level.
+     *
+     * @param zoom    of the map
+     * @param marker  current marker, only the ones on the map are stored
+     * @param version of the dataset the marker were computed with, see getVersion
+     */
+    void put(float zoom, List<A_MapMarker> marker, int version) {
+        put(new Entry(zoom, marker), version);
+    }
+
+    /**
+     * Stores clusters, replacing older ones of the same integer zoom level.
+     *
+     * @param entry   clusters of a zoom level
+     * @param version of the dataset the clusters were computed with, see getVersion
+     */
+    synchronized void put(Entry entry, int version) {
+        if (version != m_version) {
+            return;
+        }
+        Entry old = m_entries.put(getLevel(entry.m_zoom), entry);
+        if (old != null) {
+            m_bytes -= old.getBytes();
+        }
+        m_bytes += entry.getBytes();
+        trimToSize(m_maxBytes);
+    }
+
+    /**
+     * Gets the clusters of a zoom level. Clusters computed for a higher zoom than the requested one are not returned,
+     * because their marker would be closer than the marker spacing.
+     *
+     * @param zoom of the map
+     * @return entry or null, if there is no suitable one
+     */
+    synchronized Entry get(float zoom) {
+        Entry entry = m_entries.get(getLevel(zoom));
+        return entry == null || entry.m_zoom > zoom ? null : entry;
+    }
+
+    /**
+     * Removes all entries, e.g. because the elements or the marker spacing changed.
+     */
+    synchronized void invalidate() {
+        m_version++;
+        clear();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        m_entries.clear();
+        m_bytes = 0;
+    }
+
+    /**
+     * Sets the memory bound and evicts entries if needed.
+     *
+     * @param maxBytes memory bound in bytes
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        m_maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Gets the memory bound.
+     *
+     * @return memory bound in bytes
+     */
+    synchronized long getMaxBytes() {
+        return m_maxBytes;
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is not larger than the given size.
+     *
+     * @param bytes size to trim the cache to
+     */
+    synchronized void trimToSize(long bytes) {
+        Iterator<Entry> it = m_entries.values().iterator();
+        while (m_bytes > bytes && it.hasNext()) {
+            m_bytes -= it.next().getBytes();
+            it.remove();
+        }
+    }
+
+    /**
+     * Clusters the elements like the incremental clustering does for an empty map: each element is added to the
+     * nearest cluster within the min pixel distance, or starts a new cluster.
+     *
+     * @param store    of the elements
+     * @param handles  of the elements, sorted
+     * @param scale    pixel per normalized Web-Mercator unit at the zoom level
+     * @param distance min pixel distance of marker
+     * @param zoom     level
+     * @param task     to check for cancellation, null if the clustering can't be cancelled
+     * @return clusters or null, if the task was cancelled
+     */
+    static Entry cluster(ElementStore store, IntList handles, double scale, double distance, float zoom, UpdateExecutor.Task task) {
+        double cellSize = Math.max(1, distance);
+        double max = distance * distance;
+        Map<Long, IntList> cells = new HashMap<>();
+        int[] clusterOf = new int[handles.size()];
+        int count = 0;
+        int[] size = new int[16];
+        long[] cellOf = new long[16];
+        double[] sumX = new double[16], sumY = new double[16], sumZ = new double[16];
+        double[] pixelX = new double[16], pixelY = new double[16];
+        for (int i = 0; i < handles.size(); i++) {
+            if (task != null && i % CANCEL_CHECK_INTERVAL == 0 && task.isCancelled()) {
+                return null;
+            }
+            int h = handles.get(i);
+            double x = store.getX(h) * scale;
+            double y = store.getY(h) * scale;
+            int cx = (int) Math.floor(x / cellSize);
+            int cy = (int) Math.floor(y / cellSize);
+            int nearest = -1;
+            double best = max;
+            for (int a = cx - 1; a <= cx + 1; a++) {
+                for (int b = cy - 1; b <= cy + 1; b++) {
+                    IntList list = cells.get(getCell(a, b));
+                    if (list == null) {
+                        continue;
+                    }
+                    for (int k = 0; k < list.size(); k++) {
+                        int c = list.get(k);
+                        double dist = (pixelX[c] - x) * (pixelX[c] - x) + (pixelY[c] - y) * (pixelY[c] - y);
+                        if (dist <= best) {
+                            best = dist;
+                            nearest = c;
+                        }
+                    }
+                }
+            }
+            if (nearest < 0) {
+                if (count == size.length) {
+                    int capacity = 2 * count;
+                    size = Arrays.copyOf(size, capacity);
+                    cellOf = Arrays.copyOf(cellOf, capacity);
+                    sumX = Arrays.copyOf(sumX, capacity);
+                    sumY = Arrays.copyOf(sumY, capacity);
+                    sumZ = Arrays.copyOf(sumZ, capacity);
+                    pixelX = Arrays.copyOf(pixelX, capacity);
+                    pixelY = Arrays.copyOf(pixelY, capacity);
+                }
+                nearest = count++;
+                cellOf[nearest] = Long.MIN_VALUE;
+            }
+            clusterOf[i] = nearest;
+            size[nearest]++;
+            sumX[nearest] += store.getUnitX(h);
+            sumY[nearest] += store.getUnitY(h);
+            sumZ[nearest] += store.getUnitZ(h);
+            //Move center like A_MapMarker.refresh does
+            LatLng center = getCenter(sumX[nearest], sumY[nearest], sumZ[nearest]);
+            pixelX[nearest] = MercatorProjection.getNormalizedX(center.longitude) * scale;
+            pixelY[nearest] = MercatorProjection.getNormalizedY(center.latitude) * scale;
+            long cell = getCell((int) Math.floor(pixelX[nearest] / cellSize), (int) Math.floor(pixelY[nearest] / cellSize));
+            if (cell != cellOf[nearest]) {
+                IntList old = cells.get(cellOf[nearest]);
+                if (old != null) {
+                    old.removeAt(old.indexOf(nearest));
+                }
+                IntList list = cells.get(cell);
+                if (list == null) {
+                    list = new IntList(2);
+                    cells.put(cell, list);
+                }
+                list.add(nearest);
+                cellOf[nearest] = cell;
+            }
+        }
+        //Group the handles by cluster
+        int[] offsets = new int[count + 1];
+        for (int c = 0; c < count; c++) {
+            offsets[c + 1] = offsets[c] + size[c];
+        }
+        int[] fill = Arrays.copyOf(offsets, count);
+        int[] grouped = new int[handles.size()];
+        for (int i = 0; i < handles.size(); i++) {
+            grouped[fill[clusterOf[i]]++] = handles.get(i);
+        }
+        double[] latitude = new double[count], longitude = new double[count];
+        for (int c = 0; c < count; c++) {
+            LatLng center = getCenter(sumX[c], sumY[c], sumZ[c]);
+            latitude[c] = center.latitude;
+            longitude[c] = center.longitude;
+        }
+        return new Entry(zoom, latitude, longitude, offsets, grouped);
+    }
+
+    /**
+     * Gets the center of a cluster from the sum of the unit vectors of its elements, see A_MapMarker.calcCenter.
+     *
+     * @param x sum of x
+     * @param y sum of y
+     * @param z sum of z
+     * @return center
+     */
+    private static LatLng getCenter(double x, double y, double z) {
+        double lat = 90 - Math.toDegrees(Math.acos(z / Math.sqrt(x * x + y * y + z * z)));
+        double lng = Math.toDegrees(Math.atan2(y, x));
+        return new LatLng(lat, lng);
+    }
+
+    private static long getCell(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Gets the integer zoom level used as key.
+     *
+     * @param zoom of the map
+     * @return zoom level
+     */
+    private static int getLevel(float zoom) {
+        return (int) Math.floor(zoom);
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hierarchical clustering of all elements, computed once for every integer zoom level.
+ * <p>
+ * Elements are clustered in the normalized Web-Mercator space, starting with the single elements at MAX_ZOOM+1 down to
+ * zoom 0. On each level all clusters of the level above within the min pixel distance (at this zoom) are merged.
+ * Each cluster stores a link to its parent cluster. The elements are stored in an order where the elements of every
+ * cluster on every level are a contiguous range, so the elements of a cluster can be returned without traversing the tree.
+ * <p>
+ * Levels where no clusters are merged share the same object. So a cluster which does not change over some zoom levels is
+ * identified by the same level id and index on all these zoom levels.
+ */
+class ClusterTree {
+
+    /**
+     * Max zoom level with clustering, for higher zoom levels single elements are returned.
+     */
+    static final int MAX_ZOOM = 20;
+
+    /**
+     * All clusters of one zoom level.
+     */
+    private static class Level {
+        /**
+         * Id of this level, levels shared by multiple zoom levels have one id.
+         */
+        private int m_id;
+        /**
+         * Number of clusters.
+         */
+        private final int m_size;
+        /**
+         * Normalized Web-Mercator position of the clusters.
+         */
+        private final double[] m_x, m_y;
+        /**
+         * Number of elements per cluster.
+         */
+        private final int[] m_count;
+        /**
+         * Index of parent cluster in the next level with lower zoom, null for the top level.
+         */
+        private int[] m_parent;
+        /**
+         * Position of the first element of each cluster in m_leaves.
+         */
+        private final int[] m_start;
+        /**
+         * Spatial index over the cluster positions.
+         */
+        private final KDIndex m_index;
+
+        private Level(double[] x, double[] y, int[] count, int size) {
+            m_size = size;
+            m_x = x;
+            m_y = y;
+            m_count = count;
+            m_start = new int[size];
+            m_index = new KDIndex(x, y, size);
+        }
+    }
+
+    /**
+     * Level for each zoom level, index MAX_ZOOM+1 holds the single elements.
+     */
+    private final Level[] m_levels = new Level[MAX_ZOOM + 2];
+
+    /**
+     * Distinct levels, index is the id of the level.
+     */
+    private final List<Level> m_distinctLevels = new ArrayList<>();
+
+    /**
+     * Handles of all elements, ordered so that the elements of each cluster are contiguous.
+     */
+    private final int[] m_leaves;
+
+    /**
+     * Min pixel distance used for clustering.
+     */
+    private final double m_radius;
+
+    /**
+     * Size of the world at zoom 0 in pixel.
+     */
+    private final double m_tileSize;
+
+    /**
+     * Public constructor, clusters all elements. This needs some time for large datasets, don't run it on UI thread!
+     *
+     * @param store    with all elements to be clustered, removed elements are skipped
+     * @param radius   min pixel distance of clusters
+     * @param tileSize size of the world at zoom 0 in pixel
+     */
+    ClusterTree(ElementStore store, double radius, double tileSize) {
+        m_radius = radius;
+        m_tileSize = tileSize;
+        int n = store.getElementCount();
+        int[] handles = new int[n];
+        double[] x = new double[n];
+        double[] y = new double[n];
+        int[] count = new int[n];
+        for (int h = 0, i = 0; i < n; h++) {
+            if (store.isRemoved(h)) {
+                continue;
+            }
+            handles[i] = h;
+            x[i] = store.getX(h);
+            y[i] = store.getY(h);
+            count[i] = 1;
+            i++;
+        }
+        Level level = new Level(x, y, count, n);
+        m_levels[MAX_ZOOM + 1] = level;
+        for (int z = MAX_ZOOM; z >= 0; z--) {
+            level = cluster(level, radius / (tileSize * Math.pow(2, z)));
+            m_levels[z] = level;
+        }
+        m_leaves = new int[n];
+        sortLeaves(handles);
+    }
+
+    /**
+     * Gets the min pixel distance used for clustering.
+     *
+     * @return radius in pixel
+     */
+    double getRadius() {
+        return m_radius;
+    }
+
+    /**
+     * Gets the size of the world at zoom 0 used for clustering.
+     *
+     * @return tile size in pixel
+     */
+    double getTileSize() {
+        return m_tileSize;
+    }
+
+    /**
+     * Adds all clusters within the bounds at the given zoom to result.
+     *
+     * @param bounds to look for clusters
+     * @param zoom   of the map
+     * @param result list to add the indices of the clusters to
+     * @return the level id of the clusters
+     */
+    int query(LatLngBounds bounds, float zoom, IntList result) {
+        int z = Math.max(0, Math.min(MAX_ZOOM + 1, (int) Math.floor(zoom)));
+        Level level = m_levels[z];
+        level.m_index.range(bounds, result);
+        return level.m_id;
+    }
+
+    /**
+     * Gets the center of a cluster.
+     *
+     * @param levelId id of level, see query
+     * @param index   of cluster
+     * @return LatLng of the center
+     */
+    LatLng getCenter(int levelId, int index) {
+        Level level = m_distinctLevels.get(levelId);
+        return new LatLng(MercatorProjection.getLatitude(level.m_y[index]), MercatorProjection.getLongitude(level.m_x[index]));
+    }
+
+    /**
+     * Gets the elements of a cluster.
+     *
+     * @param levelId id of level, see query
+     * @param index   of cluster
+     * @return new list with the handles of all elements of the cluster
+     */
+    IntList getHandles(int levelId, int index) {
+        Level level = m_distinctLevels.get(levelId);
+        int start = level.m_start[index];
+        int count = level.m_count[index];
+        IntList ret = new IntList(count);
+        for (int i = start; i < start + count; i++) {
+            ret.add(m_leaves[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * Clusters all clusters of the given level within radius.
+     * Clusters are merged across the antimeridian, x positions are taken relative to the first cluster before averaging.
+     *
+     * @param src    level with higher zoom
+     * @param radius in normalized Web-Mercator units
+     * @return new level, or src if no clusters were merged
+     */
+    private static Level cluster(Level src, double radius) {
+        int[] parent = new int[src.m_size];
+        Arrays.fill(parent, -1);
+        double[] x = new double[src.m_size];
+        double[] y = new double[src.m_size];
+        int[] count = new int[src.m_size];
+        int size = 0;
+        IntList neighbors = new IntList();
+        for (int i = 0; i < src.m_size; i++) {
+            if (parent[i] != -1) {
+                continue;
+            }
+            neighbors.clear();
+            src.m_index.within(src.m_x[i], src.m_y[i], radius, neighbors);
+            if (src.m_x[i] - radius < 0) {
+                src.m_index.within(src.m_x[i] + 1, src.m_y[i], radius, neighbors);
+            }
+            if (src.m_x[i] + radius > 1) {
+                src.m_index.within(src.m_x[i] - 1, src.m_y[i], radius, neighbors);
+            }
+            double wx = 0;
+            double wy = src.m_y[i] * src.m_count[i];
+            int c = src.m_count[i];
+            parent[i] = size;
+            for (int k = 0; k < neighbors.size(); k++) {
+                int j = neighbors.get(k);
+                if (parent[j] != -1) {
+                    continue;
+                }
+                parent[j] = size;
+                wx += wrap(src.m_x[j] - src.m_x[i]) * src.m_count[j];
+                wy += src.m_y[j] * src.m_count[j];
+                c += src.m_count[j];
+            }
+            x[size] = src.m_x[i] + wx / c;
+            x[size] -= Math.floor(x[size]);
+            y[size] = wy / c;
+            count[size] = c;
+            size++;
+        }
+        if (size == src.m_size) {
+            return src;
+        }
+        src.m_parent = parent;
+        return new Level(Arrays.copyOf(x, size), Arrays.copyOf(y, size), Arrays.copyOf(count, size), size);
+    }
+
+    /**
+     * Wraps a difference of normalized x positions across the antimeridian.
+     *
+     * @param dx difference of two x positions
+     * @return the shortest difference, between -0.5 and 0.5
+     */
+    private static double wrap(double dx) {
+        return dx - Math.rint(dx);
+    }
+
+    /**
+     * Assigns the level ids and orders the elements, so that the elements of every cluster are contiguous.
+     *
+     * @param handles of the single elements
+     */
+    private void sortLeaves(int[] handles) {
+        for (Level level : m_levels) {
+            if (m_distinctLevels.isEmpty() || m_distinctLevels.get(m_distinctLevels.size() - 1) != level) {
+                level.m_id = m_distinctLevels.size();
+                m_distinctLevels.add(level);
+            }
+        }
+        Level top = m_distinctLevels.get(0);
+        int start = 0;
+        for (int i = 0; i < top.m_size; i++) {
+            top.m_start[i] = start;
+            start += top.m_count[i];
+        }
+        for (int l = 1; l < m_distinctLevels.size(); l++) {
+            Level upper = m_distinctLevels.get(l - 1);
+            Level lower = m_distinctLevels.get(l);
+            int[] cursor = upper.m_start.clone();
+            for (int i = 0; i < lower.m_size; i++) {
+                int p = lower.m_parent[i];
+                lower.m_start[i] = cursor[p];
+                cursor[p] += lower.m_count[i];
+            }
+        }
+        Level bottom = m_distinctLevels.get(m_distinctLevels.size() - 1);
+        for (int i = 0; i < bottom.m_size; i++) {
+            m_leaves[bottom.m_start[i]] = handles[i];
+        }
+    }
+}
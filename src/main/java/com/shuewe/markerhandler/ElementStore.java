@@ -0,0 +1,345 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Column store of the positions of all clustered elements.
+ * Every element gets a dense int handle (its position in the list passed to the handler, elements added later are
+ * appended). Latitude, longitude, the normalized Web-Mercator position and the unit vector of each element are read
+ * once from the element and stored in primitive arrays, so the hot loops of clustering and visibility checks don't
+ * have to call getLatLng().
+ * <p>
+ * Removed elements keep their handle and position, but are not returned by query any more. Handles are not reused.
+ * Every element is stored once: later duplicates (by equals) in the list get a handle of a removed element, adding
+ * a stored element again is ignored.
+ * Elements are only added and removed on the update thread of the handler, holding the monitor of the store; other
+ * threads reading the store over a longer time (the zoom prefetch) hold the monitor too.
+ */
+class ElementStore {
+
+    /**
+     * Minimal capacity of the arrays when elements get added.
+     */
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The elements, index is the handle, null for removed elements.
+     */
+    private I_SortableMapElement[] m_elements;
+
+    /**
+     * Handle of each element. Concurrent, as the UI thread looks up handles while elements get added.
+     */
+    private final Map<I_SortableMapElement, Integer> m_handles = new ConcurrentHashMap<>();
+
+    /**
+     * Position in degrees.
+     */
+    private double[] m_lat, m_lng;
+
+    /**
+     * Position in normalized Web-Mercator space.
+     */
+    private double[] m_x, m_y;
+
+    /**
+     * Unit vector of the position.
+     */
+    private double[] m_unitX, m_unitY, m_unitZ;
+
+    /**
+     * Spatial index over the normalized Web-Mercator positions, created with the first query after elements were
+     * added.
+     */
+    private volatile KDIndex m_index;
+
+    /**
+     * Number of handles, including removed elements.
+     */
+    private int m_size;
+
+    /**
+     * Number of removed elements.
+     */
+    private int m_removed;
+
+    /**
+     * Public constructor.
+     *
+     * @param elements to be stored, the position in the list is the handle of the element, duplicates are stored as
+     *                 removed elements
+     */
+    ElementStore(List<? extends I_SortableMapElement> elements) {
+        m_size = elements.size();
+        m_elements = new I_SortableMapElement[m_size];
+        m_lat = new double[m_size];
+        m_lng = new double[m_size];
+        m_x = new double[m_size];
+        m_y = new double[m_size];
+        m_unitX = new double[m_size];
+        m_unitY = new double[m_size];
+        m_unitZ = new double[m_size];
+        for (int h = 0; h < m_size; h++) {
+            if (!set(h, elements.get(h))) {
+                m_elements[h] = null;
+                m_removed++;
+            }
+        }
+    }
+
+    /**
+     * Reads the position of an element into the arrays.
+     *
+     * @param h       handle
+     * @param element to be stored
+     * @return false, if the element is stored with another handle already
+     */
+    private boolean set(int h, I_SortableMapElement element) {
+        LatLng latLng = element.getLatLng();
+        m_elements[h] = element;
+        m_lat[h] = latLng.latitude;
+        m_lng[h] = latLng.longitude;
+        m_x[h] = MercatorProjection.getNormalizedX(latLng.longitude);
+        m_y[h] = MercatorProjection.getNormalizedY(latLng.latitude);
+        double[] unit = A_MapMarker.calcUnitVector(latLng);
+        m_unitX[h] = unit[0];
+        m_unitY[h] = unit[1];
+        m_unitZ[h] = unit[2];
+        if (m_handles.containsKey(element)) {
+            return false;
+        }
+        m_handles.put(element, h);
+        return true;
+    }
+
+    /**
+     * Adds an element. The spatial index gets rebuilt by the next query.
+     *
+     * @param element to be added
+     * @return handle of the element or -1, if the element is stored already
+     */
+    synchronized int add(I_SortableMapElement element) {
+        if (m_handles.containsKey(element)) {
+            return -1;
+        }
+        if (m_size == m_elements.length) {
+            grow(Math.max(MIN_CAPACITY, 2 * m_size));
+        }
+        set(m_size, element);
+        m_index = null;
+        return m_size++;
+    }
+
+    /**
+     * Removes an element. Its handle stays valid for the position getters, but is not returned by query any more.
+     *
+     * @param h handle
+     * @return false, if the element was removed already
+     */
+    synchronized boolean remove(int h) {
+        I_SortableMapElement element = m_elements[h];
+        if (element == null) {
+            return false;
+        }
+        m_handles.remove(element, h);
+        m_elements[h] = null;
+        m_removed++;
+        return true;
+    }
+
+    /**
+     * Checks if the element of a handle was removed.
+     *
+     * @param h handle
+     * @return true, if the element was removed
+     */
+    boolean isRemoved(int h) {
+        return m_elements[h] == null;
+    }
+
+    /**
+     * Increases the capacity of the arrays.
+     *
+     * @param capacity new capacity
+     */
+    private void grow(int capacity) {
+        m_elements = Arrays.copyOf(m_elements, capacity);
+        m_lat = Arrays.copyOf(m_lat, capacity);
+        m_lng = Arrays.copyOf(m_lng, capacity);
+        m_x = Arrays.copyOf(m_x, capacity);
+        m_y = Arrays.copyOf(m_y, capacity);
+        m_unitX = Arrays.copyOf(m_unitX, capacity);
+        m_unitY = Arrays.copyOf(m_unitY, capacity);
+        m_unitZ = Arrays.copyOf(m_unitZ, capacity);
+    }
+
+    /**
+     * Number of handles, including the ones of removed elements. All handles are smaller than the size.
+     *
+     * @return size
+     */
+    int size() {
+        return m_size;
+    }
+
+    /**
+     * Number of stored elements, without removed ones.
+     *
+     * @return number of elements
+     */
+    int getElementCount() {
+        return m_size - m_removed;
+    }
+
+    /**
+     * Gets the handle of an element.
+     *
+     * @param element to look for
+     * @return handle or -1, if element is not stored
+     */
+    int getHandle(I_SortableMapElement element) {
+        Integer ret = m_handles.get(element);
+        return ret == null ? -1 : ret;
+    }
+
+    /**
+     * Gets the element of a handle.
+     *
+     * @param h handle
+     * @return the element, null if it was removed
+     */
+    I_SortableMapElement getElement(int h) {
+        return m_elements[h];
+    }
+
+    /**
+     * Gets the latitude.
+     *
+     * @param h handle
+     * @return latitude in degrees
+     */
+    double getLatitude(int h) {
+        return m_lat[h];
+    }
+
+    /**
+     * Gets the longitude.
+     *
+     * @param h handle
+     * @return longitude in degrees
+     */
+    double getLongitude(int h) {
+        return m_lng[h];
+    }
+
+    /**
+     * Gets the normalized Web-Mercator x position.
+     *
+     * @param h handle
+     * @return x in [0,1]
+     */
+    double getX(int h) {
+        return m_x[h];
+    }
+
+    /**
+     * Gets the normalized Web-Mercator y position.
+     *
+     * @param h handle
+     * @return y in [0,1]
+     */
+    double getY(int h) {
+        return m_y[h];
+    }
+
+    /**
+     * Gets the x component of the unit vector.
+     *
+     * @param h handle
+     * @return x component
+     */
+    double getUnitX(int h) {
+        return m_unitX[h];
+    }
+
+    /**
+     * Gets the y component of the unit vector.
+     *
+     * @param h handle
+     * @return y component
+     */
+    double getUnitY(int h) {
+        return m_unitY[h];
+    }
+
+    /**
+     * Gets the z component of the unit vector.
+     *
+     * @param h handle
+     * @return z component
+     */
+    double getUnitZ(int h) {
+        return m_unitZ[h];
+    }
+
+    /**
+     * Adds the handles of all elements within the bounds to result, in no particular order. Removed elements are
+     * skipped. Only the elements in the nodes of the spatial index overlapping the bounds are checked.
+     *
+     * @param bounds to look for elements
+     * @param result list to add the handles to
+     */
+    void query(LatLngBounds bounds, IntList result) {
+        KDIndex index = m_index;
+        if (index == null) {
+            index = new KDIndex(m_x, m_y, m_size);
+            m_index = index;
+        }
+        int start = result.size();
+        index.range(bounds, result);
+        int j = start;
+        for (int i = start; i < result.size(); i++) {
+            int h = result.get(i);
+            if (m_elements[h] != null && bounds.contains(m_lat[h], m_lng[h])) {
+                result.set(j++, h);
+            }
+        }
+        result.truncate(j);
+    }
+
+    /**
+     * Projects the positions of the given elements to pixel.
+     *
+     * @param projection to be used
+     * @param handles    of the elements, negative handles result in NaN
+     * @param out        buffer for pixel values, x and y alternating, at least 2*handles.size() long
+     */
+    void project(MercatorProjection projection, IntList handles, double[] out) {
+        projection.project(m_x, m_y, handles, out);
+    }
+
+    /**
+     * Projects the positions of a range of elements to pixel.
+     *
+     * @param projection to be used
+     * @param from       first handle
+     * @param count      number of elements
+     * @param out        buffer for pixel values, x and y alternating, at least 2*count long
+     */
+    void project(MercatorProjection projection, int from, int count, float[] out) {
+        projection.project(m_x, m_y, from, count, out);
+    }
+}
@@ -1,18 +1,118 @@
 package com.shuewe.markerhandler;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
 import android.util.DisplayMetrics;
+import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-
+/**
+ * Implementation of A_Handler which draws the marker as circles, e.g. for static overview maps.
+ * <p>
+ * The whole marker layer is rendered into an offscreen bitmap on the update thread, with one drawPoints call per
+ * color. The UI thread only draws the finished bitmap, see getMarkerBitmap. Changes of single marker, like toggling
+ * the active marker, only repaint the region around the marker, see getDirtyRegion.
+ */
 public class HandlerCanvas extends A_Handler<MercatorProjection, Canvas,String,LatLngBounds,Integer> {
 
     private double m_pointRadius=10;
 
+    /**
+     * Rendered marker layer with the positions of its marker.
+     */
+    private static class Layer {
+
+        /**
+         * Bitmap with the marker.
+         */
+        private Bitmap m_bitmap;
+
+        /**
+         * Pixel positions of the drawn marker.
+         */
+        private MarkerGrid m_grid;
+
+        /**
+         * Radius the marker are drawn with.
+         */
+        private double m_radius;
+
+        /**
+         * Max distance of the center of a marker to the center of a changed marker, for the marker to overlap the
+         * dirty rectangle of the changed one.
+         */
+        private double m_reach;
+    }
+
+    /**
+     * Layer shown on the UI thread.
+     */
+    private Layer m_front = new Layer();
+
+    /**
+     * Layer the next marker get rendered into on the update thread.
+     */
+    private Layer m_back = new Layer();
+
+    /**
+     * Change set of the marker rendered into m_back, null if m_back was shown already.
+     */
+    private volatile MarkerChangeSet<String> m_backChanges;
+
+    /**
+     * Change set of the last call of prepareChanges, also if nothing was rendered for it.
+     */
+    private volatile MarkerChangeSet<String> m_preparedChanges;
+
+    /**
+     * Canvas to render into m_back. Only used on update thread.
+     */
+    private final Canvas m_offscreen = new Canvas();
+
+    /**
+     * Canvas to repaint regions of m_front. Only used on UI thread.
+     */
+    private final Canvas m_repaint = new Canvas();
+
+    /**
+     * Region of m_front which changed since the last call of getDirtyRegion. Only used on UI thread.
+     */
+    private final Rect m_dirtyRegion = new Rect();
+
+    /**
+     * Marker to be repainted, reused. Only used on UI thread.
+     */
+    private final List<A_MapMarker> m_repaintMarker = new ArrayList<>();
+
+    /**
+     * Marker repainted in m_front since the last swap. The back layer may have been rendered with their old color,
+     * so they get repainted after the swap as well. Only used on UI thread.
+     */
+    private final List<A_MapMarker> m_toggledMarker = new ArrayList<>();
+
+    /**
+     * Paints to render the marker layer by color value. Only used on update thread.
+     */
+    private final Map<Integer, Paint> m_pointPaints = new HashMap<>();
+
+    /**
+     * Paints for single marker drawn by CanvasMarker.setMarker by color value. Only used on UI thread.
+     */
+    private final Map<Integer, Paint> m_fillPaints = new HashMap<>();
+
+    /**
+     * Pixel positions per color, x and y alternating, reused between renderings. Only used on update thread.
+     */
+    private final float[][] m_points = new float[A_MapMarker.COLOR.values().length][];
+
     /**
      * Map to bind A_MapMarker.COLOR values to color values suitable for mapbox.
      */
@@ -42,14 +142,232 @@ public class HandlerCanvas extends A_Handler<MercatorProjection, Canvas,String,L
 
 
 
+    /**
+     * Gets the bitmap with the marker layer of the last update, to be drawn by the UI, e.g. in View.onDraw.
+     * Only call it on the UI thread, the bitmap is reused for later updates.
+     *
+     * @return bitmap of the size of the projection or null, if nothing is rendered yet
+     */
+    public Bitmap getMarkerBitmap() {
+        return m_front.m_bitmap;
+    }
+
+    /**
+     * Gets the region of the marker bitmap which changed since the last call, e.g. for View.invalidate(Rect).
+     * Only call it on the UI thread.
+     *
+     * @param out rect to write the region to
+     * @return false, if nothing changed
+     */
+    public boolean getDirtyRegion(Rect out) {
+        if (m_dirtyRegion.isEmpty()) {
+            return false;
+        }
+        out.set(m_dirtyRegion);
+        m_dirtyRegion.setEmpty();
+        return true;
+    }
+
+    /**
+     * Gets the paint to draw filled circles of a color.
+     *
+     * @param color value
+     * @return shared paint
+     */
+    Paint getFillPaint(int color) {
+        Paint paint = m_fillPaints.get(color);
+        if (paint == null) {
+            paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setStyle(Paint.Style.FILL);
+            paint.setColor(color);
+            m_fillPaints.put(color, paint);
+        }
+        return paint;
+    }
+
+    /**
+     * Gets the paint to draw points of a color as circles with the point radius.
+     *
+     * @param color value
+     * @return shared paint
+     */
+    private Paint getPointPaint(int color) {
+        Paint paint = m_pointPaints.get(color);
+        if (paint == null) {
+            paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setStrokeCap(Paint.Cap.ROUND);
+            paint.setColor(color);
+            m_pointPaints.put(color, paint);
+        }
+        paint.setStrokeWidth((float) (2 * m_pointRadius));
+        return paint;
+    }
+
+    /**
+     * Renders all marker into the back buffer.
+     */
+    @Override
+    protected void prepareChanges(MercatorProjection projection, MarkerChangeSet<String> changes) {
+        long t = System.currentTimeMillis();
+        m_preparedChanges = changes;
+        int width = (int) Math.ceil(projection.getWidth());
+        int height = (int) Math.ceil(projection.getHeight());
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        Layer layer = m_back;
+        if (layer.m_bitmap == null || layer.m_bitmap.getWidth() != width || layer.m_bitmap.getHeight() != height) {
+            layer.m_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        layer.m_bitmap.eraseColor(Color.TRANSPARENT);
+        m_offscreen.setBitmap(layer.m_bitmap);
+        layer.m_radius = m_pointRadius;
+        //A marker overlaps the dirty rectangle of another one, if its center is within radius + diagonal of the rectangle
+        layer.m_reach = m_pointRadius + Math.sqrt(2) * (m_pointRadius + 1);
+        layer.m_grid = new MarkerGrid(layer.m_reach);
+
+        int[] count = new int[m_points.length];
+        for (A_MapMarker marker : m_marker) {
+            int c = marker.getColor().ordinal();
+            float[] points = m_points[c];
+            if (points == null || points.length < 2 * (count[c] + 1)) {
+                float[] grown = new float[Math.max(64, 4 * count[c])];
+                if (points != null) {
+                    System.arraycopy(points, 0, grown, 0, 2 * count[c]);
+                }
+                m_points[c] = points = grown;
+            }
+            points[2 * count[c]] = (float) projection.getPixelX(marker.m_centerX);
+            points[2 * count[c] + 1] = (float) projection.getPixelY(marker.m_centerY);
+            layer.m_grid.put(marker, points[2 * count[c]], points[2 * count[c] + 1]);
+            count[c]++;
+        }
+        for (A_MapMarker.COLOR color : A_MapMarker.COLOR.values()) {
+            Integer value = COLOR_MAP.get(color);
+            if (count[color.ordinal()] > 0 && value != null) {
+                m_offscreen.drawPoints(m_points[color.ordinal()], 0, 2 * count[color.ordinal()], getPointPaint(value));
+            }
+        }
+        m_offscreen.setBitmap(null);
+        m_backChanges = changes;
+        Log.i(LOG_NAME, "Rendered " + m_marker.size() + " marker offscreen: " + (System.currentTimeMillis() - t));
+    }
+
+    /**
+     * Shows the rendered marker layer by swapping the buffers and draws it on the canvas of the handler, if set.
+     * Changes which were not rendered, like marker by id, are drawn directly on the canvas.
+     * Changes prepared for a projection without size and changes without canvas are skipped, the next update
+     * renders them.
+     */
+    @Override
+    protected boolean applyChanges(MarkerChangeSet<String> changes, long deadline) {
+        if (changes != m_backChanges) {
+            if (changes == m_preparedChanges || m_map == null) {
+                changes.setApplied();
+                return true;
+            }
+            return super.applyChanges(changes, deadline);
+        }
+        Layer front = m_front;
+        m_front = m_back;
+        m_back = front;
+        m_backChanges = null;
+        for (A_MapMarker marker : m_toggledMarker) {
+            repaintMarker(m_front, marker);
+        }
+        m_toggledMarker.clear();
+        m_dirtyRegion.set(0, 0, m_front.m_bitmap.getWidth(), m_front.m_bitmap.getHeight());
+        if (m_map != null) {
+            m_map.drawBitmap(m_front.m_bitmap, 0, 0, null);
+        }
+        changes.setApplied();
+        return true;
+    }
+
     @Override
     Map<A_MapMarker.COLOR, Integer> getColorMap() {
         return COLOR_MAP;
     }
 
+    /**
+     * Canvas marker are drawn into the marker layer without a map marker object, so they are toggled without the
+     * lookup of marker objects in m_markerOnMap.
+     */
+    @Override
+    public void toggleMarker(A_MapMarker marker) {
+        if (marker.equals(m_marked)) {
+            return;
+        }
+        if (m_marked != null) {
+            m_marked.setColor(m_defaultColor);
+            updateSingleMarker(m_map, m_marked);
+        }
+        m_defaultColor = marker.getColor();
+        marker.setColor(m_activeColor);
+        m_marked = marker;
+        updateSingleMarker(m_map, m_marked);
+    }
+
+    /**
+     * Repaints the region of the marker in the shown layer, with all marker overlapping this region.
+     */
     @Override
     protected void updateSingleMarker(Canvas map, A_MapMarker m_marked) {
-        return;
+        if (!m_toggledMarker.contains(m_marked)) {
+            m_toggledMarker.add(m_marked);
+        }
+        Rect dirty = repaintMarker(m_front, m_marked);
+        if (dirty == null) {
+            return;
+        }
+        m_dirtyRegion.union(dirty);
+        if (map != null) {
+            map.drawBitmap(m_front.m_bitmap, dirty, dirty, null);
+        }
+    }
+
+    /**
+     * Repaints the region of a marker in a layer, with all marker overlapping this region.
+     *
+     * @param layer  to repaint
+     * @param marker to repaint
+     * @return the repainted region or null, if the marker is not in the layer
+     */
+    private Rect repaintMarker(Layer layer, A_MapMarker marker) {
+        double[] pos = new double[2];
+        if (layer.m_bitmap == null || !layer.m_grid.getPosition(marker, pos)) {
+            //Not rendered yet, the next update draws it
+            return null;
+        }
+        double extent = layer.m_radius + 1;
+        Rect dirty = new Rect((int) Math.floor(pos[0] - extent), (int) Math.floor(pos[1] - extent),
+                (int) Math.ceil(pos[0] + extent), (int) Math.ceil(pos[1] + extent));
+        if (!dirty.intersect(0, 0, layer.m_bitmap.getWidth(), layer.m_bitmap.getHeight())) {
+            return null;
+        }
+        m_repaintMarker.clear();
+        layer.m_grid.findWithin(pos[0], pos[1], layer.m_reach, m_repaintMarker);
+        m_repaint.setBitmap(layer.m_bitmap);
+        m_repaint.save();
+        m_repaint.clipRect(dirty);
+        m_repaint.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        //Same order as the full rendering: by color, later colors on top
+        for (A_MapMarker.COLOR color : A_MapMarker.COLOR.values()) {
+            Integer value = COLOR_MAP.get(color);
+            if (value == null) {
+                continue;
+            }
+            for (A_MapMarker other : m_repaintMarker) {
+                if (other.getColor() == color && layer.m_grid.getPosition(other, pos)) {
+                    m_repaint.drawCircle((float) pos[0], (float) pos[1], (float) layer.m_radius, getFillPaint(value));
+                }
+            }
+        }
+        m_repaint.restore();
+        m_repaint.setBitmap(null);
+        m_repaintMarker.clear();
+        return dirty;
     }
 
     @Override
@@ -73,12 +391,12 @@ public class HandlerCanvas extends A_Handler<MercatorProjection, Canvas,String,L
     }
 
     @Override
-    protected boolean isInRegion(LatLngBounds bounds, LatLng place) {
-        return bounds.contains(place);
+    protected LatLngBounds getVisibleRegion(MercatorProjection projection) {
+        return projection.getVisibleRegion();
     }
 
     @Override
-    protected LatLngBounds getVisibleRegion(MercatorProjection projection) {
-        return projection.getVisibleRegion();
+    protected LatLngBounds toLatLngBounds(LatLngBounds bounds) {
+        return bounds;
     }
 }
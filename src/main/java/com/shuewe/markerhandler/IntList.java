@@ -0,0 +1,147 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive int values, used to collect indices without boxing.
+ */
+class IntList {
+
+    /**
+     * The values.
+     */
+    private int[] m_values;
+
+    /**
+     * Number of used values.
+     */
+    private int m_size;
+
+    /**
+     * Public constructor.
+     */
+    IntList() {
+        this(16);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param capacity initial capacity
+     */
+    IntList(int capacity) {
+        m_values = new int[Math.max(1, capacity)];
+    }
+
+    /**
+     * Appends a value.
+     *
+     * @param value to be added
+     */
+    void add(int value) {
+        if (m_size == m_values.length) {
+            m_values = Arrays.copyOf(m_values, m_size * 2);
+        }
+        m_values[m_size++] = value;
+    }
+
+    /**
+     * Gets a value.
+     *
+     * @param index of value
+     * @return the value
+     */
+    int get(int index) {
+        return m_values[index];
+    }
+
+    /**
+     * Number of values.
+     *
+     * @return size
+     */
+    int size() {
+        return m_size;
+    }
+
+    /**
+     * Sets a value.
+     *
+     * @param index of value
+     * @param value to be set
+     */
+    void set(int index, int value) {
+        m_values[index] = value;
+    }
+
+    /**
+     * Gets the index of the first occurrence of a value.
+     *
+     * @param value to look for
+     * @return index or -1, if value is not contained
+     */
+    int indexOf(int value) {
+        for (int i = 0; i < m_size; i++) {
+            if (m_values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the value at the given index, following values are shifted.
+     *
+     * @param index of value to be removed
+     */
+    void removeAt(int index) {
+        System.arraycopy(m_values, index + 1, m_values, index, m_size - index - 1);
+        m_size--;
+    }
+
+    /**
+     * Appends all values of another list.
+     *
+     * @param other list with values to be added
+     */
+    void addAll(IntList other) {
+        if (m_size + other.m_size > m_values.length) {
+            m_values = Arrays.copyOf(m_values, Math.max(m_size + other.m_size, m_size * 2));
+        }
+        System.arraycopy(other.m_values, 0, m_values, m_size, other.m_size);
+        m_size += other.m_size;
+    }
+
+    /**
+     * Reduces the size, values behind the new size are dropped.
+     *
+     * @param size new size, not larger than the current size
+     */
+    void truncate(int size) {
+        m_size = size;
+    }
+
+    /**
+     * Sorts the values ascending.
+     */
+    void sort() {
+        Arrays.sort(m_values, 0, m_size);
+    }
+
+    /**
+     * Removes all values, keeps the capacity.
+     */
+    void clear() {
+        m_size = 0;
+    }
+}
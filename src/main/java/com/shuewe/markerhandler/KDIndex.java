@@ -0,0 +1,249 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+/**
+ * Static KD-tree over points given by two coordinate arrays.
+ * The coordinate arrays are not copied, only an array of point indices gets sorted. The arrays must not be changed
+ * while the index is in use.
+ */
+class KDIndex {
+
+    /**
+     * Default number of points in a leaf node, which are scanned linearly.
+     */
+    private static final int NODE_SIZE = 64;
+
+    /**
+     * Point indices in tree order.
+     */
+    private final int[] m_ids;
+
+    /**
+     * The coordinates.
+     */
+    private final double[] m_x, m_y;
+
+    /**
+     * Public constructor, builds the index.
+     *
+     * @param x    x coordinates
+     * @param y    y coordinates
+     * @param size number of points to index (from 0 to size-1)
+     */
+    KDIndex(double[] x, double[] y, int size) {
+        m_x = x;
+        m_y = y;
+        m_ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            m_ids[i] = i;
+        }
+        sort(0, size - 1, 0);
+    }
+
+    /**
+     * Number of indexed points.
+     *
+     * @return size
+     */
+    int size() {
+        return m_ids.length;
+    }
+
+    /**
+     * Adds all indices of points inside the given bounds to result. The points must be in the normalized Web-Mercator
+     * space, bounds crossing the Datumsgrenze are split in two rectangles.
+     *
+     * @param bounds to look for points
+     * @param result list to add indices to
+     */
+    void range(LatLngBounds bounds, IntList result) {
+        double minY = MercatorProjection.getNormalizedY(bounds.getNorthWest().latitude);
+        double maxY = MercatorProjection.getNormalizedY(bounds.getSouthEast().latitude);
+        double minX = MercatorProjection.getNormalizedX(bounds.getNorthWest().longitude);
+        double maxX = MercatorProjection.getNormalizedX(bounds.getSouthEast().longitude);
+        if (minX <= maxX) {
+            range(minX, minY, maxX, maxY, result);
+        } else {
+            //Datumsgrenze
+            range(minX, minY, 1, maxY, result);
+            range(0, minY, maxX, maxY, result);
+        }
+    }
+
+    /**
+     * Adds all indices of points inside the given rectangle to result.
+     *
+     * @param minX   min x
+     * @param minY   min y
+     * @param maxX   max x
+     * @param maxY   max y
+     * @param result list to add indices to
+     */
+    void range(double minX, double minY, double maxX, double maxY, IntList result) {
+        if (m_ids.length == 0) {
+            return;
+        }
+        int[] stack = new int[3 * 64];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = m_ids.length - 1;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int axis = stack[--sp];
+            int right = stack[--sp];
+            int left = stack[--sp];
+            if (right - left <= NODE_SIZE) {
+                for (int i = left; i <= right; i++) {
+                    int id = m_ids[i];
+                    double x = m_x[id];
+                    double y = m_y[id];
+                    if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                        result.add(id);
+                    }
+                }
+                continue;
+            }
+            int m = (left + right) >> 1;
+            int id = m_ids[m];
+            double x = m_x[id];
+            double y = m_y[id];
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                result.add(id);
+            }
+            if (axis == 0 ? minX <= x : minY <= y) {
+                stack[sp++] = left;
+                stack[sp++] = m - 1;
+                stack[sp++] = 1 - axis;
+            }
+            if (axis == 0 ? maxX >= x : maxY >= y) {
+                stack[sp++] = m + 1;
+                stack[sp++] = right;
+                stack[sp++] = 1 - axis;
+            }
+        }
+    }
+
+    /**
+     * Adds all indices of points within the given distance to the point (qx,qy) to result.
+     *
+     * @param qx     x of query point
+     * @param qy     y of query point
+     * @param r      max distance
+     * @param result list to add indices to
+     */
+    void within(double qx, double qy, double r, IntList result) {
+        if (m_ids.length == 0) {
+            return;
+        }
+        double r2 = r * r;
+        int[] stack = new int[3 * 64];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = m_ids.length - 1;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int axis = stack[--sp];
+            int right = stack[--sp];
+            int left = stack[--sp];
+            if (right - left <= NODE_SIZE) {
+                for (int i = left; i <= right; i++) {
+                    int id = m_ids[i];
+                    if (sqDist(m_x[id], m_y[id], qx, qy) <= r2) {
+                        result.add(id);
+                    }
+                }
+                continue;
+            }
+            int m = (left + right) >> 1;
+            int id = m_ids[m];
+            double x = m_x[id];
+            double y = m_y[id];
+            if (sqDist(x, y, qx, qy) <= r2) {
+                result.add(id);
+            }
+            if (axis == 0 ? qx - r <= x : qy - r <= y) {
+                stack[sp++] = left;
+                stack[sp++] = m - 1;
+                stack[sp++] = 1 - axis;
+            }
+            if (axis == 0 ? qx + r >= x : qy + r >= y) {
+                stack[sp++] = m + 1;
+                stack[sp++] = right;
+                stack[sp++] = 1 - axis;
+            }
+        }
+    }
+
+    private static double sqDist(double ax, double ay, double bx, double by) {
+        double dx = ax - bx;
+        double dy = ay - by;
+        return dx * dx + dy * dy;
+    }
+
+    private double getCoord(int i, int axis) {
+        return axis == 0 ? m_x[m_ids[i]] : m_y[m_ids[i]];
+    }
+
+    private void sort(int left, int right, int axis) {
+        if (right - left <= NODE_SIZE) {
+            return;
+        }
+        int m = (left + right) >> 1;
+        select(m, left, right, axis);
+        sort(left, m - 1, 1 - axis);
+        sort(m + 1, right, 1 - axis);
+    }
+
+    /**
+     * Rearranges the ids, so that the k-th element is at its sorted position and all smaller elements are on the left.
+     */
+    private void select(int k, int left, int right, int axis) {
+        while (right > left) {
+            double t = getCoord(k, axis);
+            int i = left;
+            int j = right;
+            swap(left, k);
+            if (getCoord(right, axis) > t) {
+                swap(left, right);
+            }
+            while (i < j) {
+                swap(i, j);
+                i++;
+                j--;
+                while (getCoord(i, axis) < t) {
+                    i++;
+                }
+                while (getCoord(j, axis) > t) {
+                    j--;
+                }
+            }
+            if (getCoord(left, axis) == t) {
+                swap(left, j);
+            } else {
+                j++;
+                swap(j, right);
+            }
+            if (j <= k) {
+                left = j + 1;
+            }
+            if (k <= j) {
+                right = j - 1;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int tmp = m_ids[i];
+        m_ids[i] = m_ids[j];
+        m_ids[j] = tmp;
+    }
+}
@@ -44,32 +44,48 @@ public class LatLngBounds {
     }
 
     public boolean contains(LatLng point){
+        return contains(point.latitude,point.longitude);
+    }
+
+    public boolean contains(double latitude, double longitude){
         if(m_northWest==null || m_southEast==null){
             return false;
         }
-        if(m_northWest.longitude > m_southEast.longitude){
+        return contains(m_northWest.latitude,m_northWest.longitude,m_southEast.latitude,m_southEast.longitude,latitude,longitude);
+    }
+
+    /**
+     * Checks if a position is within bounds given by primitive values.
+     * Use it with a snapshot of the borders in local variables for loops over many positions.
+     *
+     * @param north     latitude of north border
+     * @param west      longitude of west border
+     * @param south     latitude of south border
+     * @param east      longitude of east border
+     * @param latitude  of the position
+     * @param longitude of the position
+     * @return true, if position is within bounds
+     */
+    static boolean contains(double north, double west, double south, double east, double latitude, double longitude){
+        if(west > east){
             //Datumsgrenze
-            if(point.longitude > 0){
+            if(longitude > 0){
                 //Left side (to Asia)
-                if(point.longitude < m_northWest.longitude){
+                if(longitude < west){
                     return false;
                 }
             }else{
                 //Right side (to America)
-                if(point.longitude > m_southEast.longitude){
+                if(longitude > east){
                     return false;
                 }
             }
         }else{
-            if(point.longitude < m_northWest.longitude || point.longitude > m_southEast.longitude){
+            if(longitude < west || longitude > east){
                 return false;
             }
         }
-        if(point.latitude > m_northWest.latitude || point.latitude < m_southEast.latitude){
-            return false;
-        }
-        return true;
-
+        return latitude <= north && latitude >= south;
     }
 
     public LatLng getNorthWest() {
@@ -0,0 +1,139 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of the marker on the map, collected by the update thread and applied on the UI thread.
+ * The changes can be applied in multiple steps, so a large change set doesn't block the UI thread for a long time.
+ * Removals are applied first, then updates of existing marker, then new marker.
+ *
+ * @param <V> marker class of the map
+ */
+class MarkerChangeSet<V> {
+
+    /**
+     * Marker to be removed from the map.
+     */
+    private final List<V> m_remove = new ArrayList<>();
+
+    /**
+     * Marker which are on the map and have changed.
+     */
+    private final List<A_MapMarker> m_update = new ArrayList<>();
+
+    /**
+     * Marker which are not on the map yet.
+     */
+    private final List<A_MapMarker> m_add = new ArrayList<>();
+
+    /**
+     * Number of changes applied so far.
+     */
+    private int m_cursor;
+
+    /**
+     * Adds a marker to be removed from the map.
+     *
+     * @param marker to be removed
+     */
+    void remove(V marker) {
+        m_remove.add(marker);
+    }
+
+    /**
+     * Adds a marker which has changed.
+     *
+     * @param marker to be updated
+     */
+    void update(A_MapMarker marker) {
+        m_update.add(marker);
+    }
+
+    /**
+     * Adds a marker which is new on the map.
+     *
+     * @param marker to be added
+     */
+    void add(A_MapMarker marker) {
+        m_add.add(marker);
+    }
+
+    /**
+     * Number of changes.
+     *
+     * @return size
+     */
+    int size() {
+        return m_remove.size() + m_update.size() + m_add.size();
+    }
+
+    /**
+     * Gets the marker to be removed from the map.
+     *
+     * @return list of marker
+     */
+    List<V> getRemoved() {
+        return m_remove;
+    }
+
+    /**
+     * Gets the marker which are on the map and have changed.
+     *
+     * @return list of marker
+     */
+    List<A_MapMarker> getUpdated() {
+        return m_update;
+    }
+
+    /**
+     * Gets the marker which are not on the map yet.
+     *
+     * @return list of marker
+     */
+    List<A_MapMarker> getAdded() {
+        return m_add;
+    }
+
+    /**
+     * Marks all changes as applied, for handlers which apply the lists at once.
+     */
+    void setApplied() {
+        m_cursor = size();
+    }
+
+    /**
+     * Applies the next changes until all changes are applied or the deadline is reached.
+     *
+     * @param handler  marker handler of the map
+     * @param deadline in System.nanoTime() units
+     * @return true, if all changes are applied
+     */
+    boolean apply(A_Handler<?, ?, V, ?, ?> handler, long deadline) {
+        int size = size();
+        while (m_cursor < size) {
+            int i = m_cursor++;
+            if (i < m_remove.size()) {
+                handler.removeMarker(m_remove.get(i));
+            } else {
+                i -= m_remove.size();
+                A_MapMarker marker = i < m_update.size() ? m_update.get(i) : m_add.get(i - m_update.size());
+                marker.setMarker(handler.getMapObject());
+            }
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        return m_cursor >= size;
+    }
+}
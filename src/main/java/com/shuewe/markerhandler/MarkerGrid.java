@@ -0,0 +1,192 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over pixel positions of marker centers.
+ * The cell size equals the min pixel distance, so all markers within this distance of a position are found in the
+ * 3x3 cells around the position.
+ */
+class MarkerGrid {
+
+    /**
+     * Pixel position of a marker in the grid.
+     */
+    private static class Entry {
+        private double m_x, m_y;
+        private long m_cell;
+    }
+
+    /**
+     * Size of a cell in pixel.
+     */
+    private final double m_cellSize;
+
+    /**
+     * Markers per cell.
+     */
+    private final Map<Long, List<A_MapMarker>> m_cells = new HashMap<>();
+
+    /**
+     * Current position of each marker in the grid.
+     */
+    private final Map<A_MapMarker, Entry> m_entries = new HashMap<>();
+
+    /**
+     * Public constructor.
+     *
+     * @param cellSize size of a cell in pixel, should be the min pixel distance of markers
+     */
+    MarkerGrid(double cellSize) {
+        m_cellSize = Math.max(1, cellSize);
+    }
+
+    /**
+     * Adds a marker to the grid or moves it, if it is already contained.
+     *
+     * @param marker to be set
+     * @param x      pixel position
+     * @param y      pixel position
+     */
+    void put(A_MapMarker marker, double x, double y) {
+        Entry entry = m_entries.get(marker);
+        long cell = getCell(getCellIndex(x), getCellIndex(y));
+        if (entry == null) {
+            entry = new Entry();
+            m_entries.put(marker, entry);
+        } else if (entry.m_cell != cell) {
+            removeFromCell(marker, entry.m_cell);
+        } else {
+            entry.m_x = x;
+            entry.m_y = y;
+            return;
+        }
+        entry.m_x = x;
+        entry.m_y = y;
+        entry.m_cell = cell;
+        List<A_MapMarker> list = m_cells.get(cell);
+        if (list == null) {
+            list = new ArrayList<>(2);
+            m_cells.put(cell, list);
+        }
+        list.add(marker);
+    }
+
+    /**
+     * Removes a marker from the grid.
+     *
+     * @param marker to be removed
+     */
+    void remove(A_MapMarker marker) {
+        Entry entry = m_entries.remove(marker);
+        if (entry != null) {
+            removeFromCell(marker, entry.m_cell);
+        }
+    }
+
+    /**
+     * Gets the position of a marker in the grid.
+     *
+     * @param marker to look up
+     * @param out    array to write x and y pixel value to
+     * @return false, if the marker is not in the grid
+     */
+    boolean getPosition(A_MapMarker marker, double[] out) {
+        Entry entry = m_entries.get(marker);
+        if (entry == null) {
+            return false;
+        }
+        out[0] = entry.m_x;
+        out[1] = entry.m_y;
+        return true;
+    }
+
+    /**
+     * Finds the nearest marker to the given position.
+     *
+     * @param x           pixel position
+     * @param y           pixel position
+     * @param maxDistance max pixel distance to the marker, must not be larger than the cell size
+     * @return nearest marker within maxDistance or null, if there is none
+     */
+    A_MapMarker findNearest(double x, double y, double maxDistance) {
+        int cx = getCellIndex(x);
+        int cy = getCellIndex(y);
+        double best = maxDistance * maxDistance;
+        A_MapMarker ret = null;
+        for (int i = cx - 1; i <= cx + 1; i++) {
+            for (int j = cy - 1; j <= cy + 1; j++) {
+                List<A_MapMarker> list = m_cells.get(getCell(i, j));
+                if (list == null) {
+                    continue;
+                }
+                for (A_MapMarker marker : list) {
+                    Entry entry = m_entries.get(marker);
+                    double dist = (entry.m_x - x) * (entry.m_x - x) + (entry.m_y - y) * (entry.m_y - y);
+                    if (dist <= best) {
+                        best = dist;
+                        ret = marker;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Adds all markers within the given distance to the position to result.
+     *
+     * @param x           pixel position
+     * @param y           pixel position
+     * @param maxDistance max pixel distance to the marker, must not be larger than the cell size
+     * @param result      list to add the markers to
+     */
+    void findWithin(double x, double y, double maxDistance, List<A_MapMarker> result) {
+        int cx = getCellIndex(x);
+        int cy = getCellIndex(y);
+        double max = maxDistance * maxDistance;
+        for (int i = cx - 1; i <= cx + 1; i++) {
+            for (int j = cy - 1; j <= cy + 1; j++) {
+                List<A_MapMarker> list = m_cells.get(getCell(i, j));
+                if (list == null) {
+                    continue;
+                }
+                for (A_MapMarker marker : list) {
+                    Entry entry = m_entries.get(marker);
+                    if ((entry.m_x - x) * (entry.m_x - x) + (entry.m_y - y) * (entry.m_y - y) <= max) {
+                        result.add(marker);
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeFromCell(A_MapMarker marker, long cell) {
+        List<A_MapMarker> list = m_cells.get(cell);
+        list.remove(marker);
+        if (list.isEmpty()) {
+            m_cells.remove(cell);
+        }
+    }
+
+    private int getCellIndex(double value) {
+        return (int) Math.floor(value / m_cellSize);
+    }
+
+    private static long getCell(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+}
@@ -1,7 +1,21 @@
 package com.shuewe.markerhandler;
 
+/**
+ * Web-Mercator projection of a region onto an area of given size in pixel, for drawing marker without a map SDK
+ * (see HandlerCanvas) and for the pixel positions of marker in the map handlers.
+ * <p>
+ * The region is mapped with the same scale in both directions, its north west corner to pixel (0,0).
+ * Instances are immutable, methods changing the region return a new projection. So a projection can be passed
+ * to a background thread while the map moves on.
+ */
 public class MercatorProjection {
 
+    /**
+     * Gets a projection with the same size, where the shorter side of the region is extended, so that the region is
+     * drawn with the same scale in both directions and centered in the projected area.
+     *
+     * @return new projection with the extended region
+     */
     public MercatorProjection center() {
         Coordinates nw = getCoordinates(new LatLng(m_northDeg,m_westDeg));
         Coordinates se = getCoordinates(new LatLng(m_southDeg,m_eastDeg));
@@ -9,12 +23,14 @@ public class MercatorProjection {
         double yDist=se.getY()-nw.getY();
         double xDist=se.getX()-nw.getX();
 
+        double north=m_northDeg,south=m_southDeg,west=m_westDeg,east=m_eastDeg;
         if(xDist > yDist){
             //increase y
             double toBeExtended = xDist -yDist;
             double ratio = toBeExtended / yDist;
-            m_northDeg = m_northDeg + (m_northDeg-m_southDeg) * ratio/2;
-            m_southDeg = m_southDeg - (m_northDeg-m_southDeg) * ratio/2;
+            double latDist = m_northDeg-m_southDeg;
+            north = m_northDeg + latDist * ratio/2;
+            south = m_southDeg - latDist * ratio/2;
         }else{
             double toBeExtended = yDist -xDist;
             double ratio = toBeExtended / xDist;
@@ -22,29 +38,30 @@ public class MercatorProjection {
             if(longDist<0){
                 longDist = (180-m_westDeg) + m_eastDeg+180;
             }
-            m_eastDeg = m_eastDeg + longDist * ratio/2;
-            m_westDeg = m_westDeg - longDist * ratio/2;
+            east = m_eastDeg + longDist * ratio/2;
+            west = m_westDeg - longDist * ratio/2;
         }
         //Correct Datumsgrenze
-        if(m_eastDeg < -180){
-            m_eastDeg= 180 + (m_eastDeg+180);
+        if(east < -180){
+            east= 180 + (east+180);
         }
-        if(m_westDeg < -180){
-            m_westDeg = 180 +(m_westDeg+180);
+        if(west < -180){
+            west = 180 +(west+180);
         }
-        if(m_eastDeg > 180){
-            m_eastDeg= -180 + (m_eastDeg-180);
+        if(east > 180){
+            east= -180 + (east-180);
         }
-        if(m_westDeg > 180){
-            m_westDeg = -180 +(m_westDeg-180);
+        if(west > 180){
+            west = -180 +(west-180);
         }
-        m_north=Math.toRadians(m_northDeg);
-        m_west=Math.toRadians(m_westDeg);
-        m_south=Math.toRadians(m_southDeg);
-        m_east=Math.toRadians(m_eastDeg);
-        return this;
+        return new MercatorProjection(m_projectionWidth,m_projectionHeight,north,west,south,east);
     }
 
+    /**
+     * Gets the region of this projection.
+     *
+     * @return bounds from north west to south east corner
+     */
     public LatLngBounds getVisibleRegion() {
         return new LatLngBounds(new LatLng(m_northDeg,m_westDeg),new LatLng(m_southDeg,m_eastDeg));
     }
@@ -66,60 +83,268 @@ public class MercatorProjection {
         }
     }
 
-    private double m_west,m_east;
-    private double m_north,m_south;
+    /**
+     * Borders of the region in degrees.
+     */
+    private final double m_westDeg,m_eastDeg;
+    private final double m_northDeg,m_southDeg;
 
-    private double m_westDeg,m_eastDeg;
-    private double m_northDeg,m_southDeg;
+    /**
+     * Size of the projected area in pixel.
+     */
+    private final double m_projectionWidth, m_projectionHeight;
 
-    private double m_projectionWidth, m_projectionHeight;
+    /**
+     * Normalized Web-Mercator position of the north west corner, mapped to pixel (0,0).
+     */
+    private final double m_offsetX, m_offsetY;
 
-    private static double getMercatorY(double lat){
-        return Math.log(Math.tan(lat/2+Math.PI/4));
+    /**
+     * Pixel per normalized Web-Mercator unit.
+     */
+    private final double m_scale;
+
+    /**
+     * True, if the region crosses the Datumsgrenze.
+     */
+    private final boolean m_wrap;
+
+    /**
+     * Gets the x value of a longitude in the normalized Web-Mercator space (0 at -180°, 1 at 180°).
+     *
+     * @param lng longitude in degrees
+     * @return normalized x
+     */
+    public static double getNormalizedX(double lng){
+        return lng/360+0.5;
     }
 
+    /**
+     * Gets the y value of a latitude in the normalized Web-Mercator space (0 at the north, 1 at the south border).
+     *
+     * @param lat latitude in degrees
+     * @return normalized y, clamped to [0,1]
+     */
+    public static double getNormalizedY(double lat){
+        double sin = Math.sin(Math.toRadians(lat));
+        double y = 0.5 - 0.25 * Math.log((1 + sin) / (1 - sin)) / Math.PI;
+        return y < 0 ? 0 : y > 1 ? 1 : y;
+    }
+
+    /**
+     * Gets the longitude of a normalized Web-Mercator x value.
+     *
+     * @param x normalized x
+     * @return longitude in degrees
+     */
+    public static double getLongitude(double x){
+        return (x-0.5)*360;
+    }
+
+    /**
+     * Gets the latitude of a normalized Web-Mercator y value.
+     *
+     * @param y normalized y
+     * @return latitude in degrees
+     */
+    public static double getLatitude(double y){
+        return Math.toDegrees(2 * Math.atan(Math.exp((0.5 - y) * 2 * Math.PI))) - 90;
+    }
+
+    /**
+     * Public constructor for a projection without region, set the region with withNorthWestBorder and
+     * withEastSouthBorder.
+     *
+     * @param width  of projected area in pixel
+     * @param height of projected area in pixel
+     */
     public MercatorProjection(double width, double height){
-        m_projectionHeight=height;
+        this(width,height,0,0,0,0);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param width     of projected area in pixel
+     * @param height    of projected area in pixel
+     * @param northWest corner of the region
+     * @param southEast corner of the region
+     */
+    public MercatorProjection(double width, double height, LatLng northWest, LatLng southEast){
+        this(width,height,northWest.latitude,northWest.longitude,southEast.latitude,southEast.longitude);
+    }
+
+    /**
+     * Constructor, computes offset and scale of the transform from the normalized Web-Mercator space to pixel.
+     *
+     * @param width  of projected area in pixel
+     * @param height of projected area in pixel
+     * @param north  border in degrees
+     * @param west   border in degrees
+     * @param south  border in degrees
+     * @param east   border in degrees
+     */
+    private MercatorProjection(double width, double height, double north, double west, double south, double east){
         m_projectionWidth=width;
+        m_projectionHeight=height;
+        m_northDeg=north;
+        m_westDeg=west;
+        m_southDeg=south;
+        m_eastDeg=east;
+        m_wrap=east<west;
+        m_offsetX=getNormalizedX(west);
+        m_offsetY=getNormalizedY(north);
+        double distX=getNormalizedX(east)-m_offsetX;
+        if(m_wrap){
+            distX+=1;
+        }
+        double xFactor=width/distX;
+        double yFactor=height/(getNormalizedY(south)-m_offsetY);
+        m_scale=Math.min(xFactor,yFactor);
     }
 
+    /**
+     * Gets a projection with the same size and the given north west corner.
+     *
+     * @param latLng north west corner of the region
+     * @return new projection
+     */
     public MercatorProjection withNorthWestBorder(LatLng latLng){
-        m_north=Math.toRadians(latLng.latitude);
-        m_west=Math.toRadians(latLng.longitude);
-        m_northDeg=latLng.latitude;
-        m_westDeg=latLng.longitude;
-        return this;
+        return new MercatorProjection(m_projectionWidth,m_projectionHeight,latLng.latitude,latLng.longitude,m_southDeg,m_eastDeg);
     }
+
+    /**
+     * Gets a projection with the same size and the given south east corner.
+     *
+     * @param latLng south east corner of the region
+     * @return new projection
+     */
     public MercatorProjection withEastSouthBorder(LatLng latLng){
-        m_south=Math.toRadians(latLng.latitude);
-        m_east=Math.toRadians(latLng.longitude);
-        m_southDeg=latLng.latitude;
-        m_eastDeg=latLng.longitude;
-        return this;
+        return new MercatorProjection(m_projectionWidth,m_projectionHeight,m_northDeg,m_westDeg,latLng.latitude,latLng.longitude);
     }
 
     public Coordinates getCoordinates(LatLng latLng){
-        double yMin=getMercatorY(m_south);
-        double yMax=getMercatorY(m_north);
-        double distLong=m_east-m_west;
-        if(distLong<0){
-            distLong = Math.toRadians((180-m_westDeg) + m_eastDeg+180);
+        return getCoordinates(latLng.latitude,latLng.longitude);
+    }
+
+    public Coordinates getCoordinates(double latitude, double longitude){
+        return new Coordinates(getPixelX(getNormalizedX(longitude)),getPixelY(getNormalizedY(latitude)));
+    }
+
+    /**
+     * Gets the width of the projected area.
+     *
+     * @return width in pixel
+     */
+    public double getWidth(){
+        return m_projectionWidth;
+    }
+
+    /**
+     * Gets the height of the projected area.
+     *
+     * @return height in pixel
+     */
+    public double getHeight(){
+        return m_projectionHeight;
+    }
+
+    /**
+     * Gets the pixel x value of a normalized Web-Mercator x value.
+     *
+     * @param x normalized x, see getNormalizedX
+     * @return x in pixel
+     */
+    public double getPixelX(double x){
+        if(m_wrap && x<0.5){
+            //Rechts von Datumsgrenze
+            x+=1;
+        }
+        return (x-m_offsetX)*m_scale;
+    }
+
+    /**
+     * Gets the pixel y value of a normalized Web-Mercator y value.
+     *
+     * @param y normalized y, see getNormalizedY
+     * @return y in pixel
+     */
+    public double getPixelY(double y){
+        return (y-m_offsetY)*m_scale;
+    }
+
+    /**
+     * Projects normalized Web-Mercator positions to pixel, without creating objects per position.
+     *
+     * @param x     normalized x values
+     * @param y     normalized y values
+     * @param from  index of first position
+     * @param count number of positions
+     * @param out   buffer for pixel values, x and y alternating (like Canvas.drawPoints), at least 2*count long
+     */
+    public void project(double[] x, double[] y, int from, int count, double[] out){
+        double scale=m_scale;
+        double offsetX=m_offsetX, offsetY=m_offsetY;
+        double wrapLimit=m_wrap ? 0.5 : 0;
+        for(int i=0;i<count;i++){
+            double px=x[from+i];
+            if(px<wrapLimit){
+                px+=1;
+            }
+            out[2*i]=(px-offsetX)*scale;
+            out[2*i+1]=(y[from+i]-offsetY)*scale;
         }
-        double xFactor=m_projectionWidth/distLong;
-        double yFactor=m_projectionHeight/(yMax-yMin);
-        if (xFactor != yFactor){
-            xFactor= Math.min(xFactor,yFactor);
-            yFactor=xFactor;
+    }
+
+    /**
+     * Projects normalized Web-Mercator positions to pixel, without creating objects per position.
+     *
+     * @param x     normalized x values
+     * @param y     normalized y values
+     * @param from  index of first position
+     * @param count number of positions
+     * @param out   buffer for pixel values, x and y alternating (like Canvas.drawPoints), at least 2*count long
+     */
+    public void project(double[] x, double[] y, int from, int count, float[] out){
+        double scale=m_scale;
+        double offsetX=m_offsetX, offsetY=m_offsetY;
+        double wrapLimit=m_wrap ? 0.5 : 0;
+        for(int i=0;i<count;i++){
+            double px=x[from+i];
+            if(px<wrapLimit){
+                px+=1;
+            }
+            out[2*i]=(float)((px-offsetX)*scale);
+            out[2*i+1]=(float)((y[from+i]-offsetY)*scale);
         }
-        double x = (Math.toRadians(latLng.longitude) - m_west) * xFactor;
-        if(m_east<m_west) {
-            if(latLng.longitude <0){
-                //Rechts von Datumsgrenze
-                x= (Math.PI-m_west +  Math.toRadians(180 + latLng.longitude)) * xFactor;
+    }
+
+    /**
+     * Projects the normalized Web-Mercator positions at the given indices to pixel.
+     *
+     * @param x       normalized x values
+     * @param y       normalized y values
+     * @param indices of the positions to project, negative indices result in NaN
+     * @param out     buffer for pixel values, x and y alternating, at least 2*indices.size() long
+     */
+    void project(double[] x, double[] y, IntList indices, double[] out){
+        double scale=m_scale;
+        double offsetX=m_offsetX, offsetY=m_offsetY;
+        double wrapLimit=m_wrap ? 0.5 : 0;
+        for(int i=0;i<indices.size();i++){
+            int index=indices.get(i);
+            if(index<0){
+                out[2*i]=Double.NaN;
+                out[2*i+1]=Double.NaN;
+                continue;
+            }
+            double px=x[index];
+            if(px<wrapLimit){
+                px+=1;
             }
+            out[2*i]=(px-offsetX)*scale;
+            out[2*i+1]=(y[index]-offsetY)*scale;
         }
-        double y = (yMax-getMercatorY(Math.toRadians(latLng.latitude)))*yFactor;
-        return new Coordinates(x,y);
     }
 
 }
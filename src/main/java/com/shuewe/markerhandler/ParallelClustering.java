@@ -0,0 +1,272 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Adds elements to marker on multiple threads.
+ * <p>
+ * The visible area is split into pixel tiles. The elements of each tile are clustered with the marker of the tile by
+ * the same rule as A_Handler.updateMarker, one tile per ForkJoin task. Afterwards marker near the tile borders which
+ * are closer to each other than the min pixel distance get merged, so the result matches the sequential clustering
+ * within the min pixel distance.
+ * <p>
+ * Each handler has its own instance with its own thread pool, which is shut down by shutdown(). Idle threads of the
+ * pool stop on their own, so the pool doesn't outlive its handler.
+ * <p>
+ * Needs API 21, only load this class after checking Build.VERSION.SDK_INT.
+ *
+ * @param <T> Projection like parameter of the handler
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class ParallelClustering<T> {
+
+    /**
+     * Minimal tile size as multiple of the min pixel distance, smaller tiles produce too many seams.
+     */
+    private static final int MIN_TILE_FACTOR = 8;
+
+    /**
+     * Handler whose elements get clustered.
+     */
+    private final A_Handler<T, ?, ?, ?, ?> m_handler;
+
+    /**
+     * Pool for the clustering tasks, created on first use.
+     */
+    private ForkJoinPool m_pool;
+
+    /**
+     * Clustering of the elements of one tile.
+     */
+    private static class TileTask<T> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final A_Handler<T, ?, ?, ?, ?> m_handler;
+        private final T m_projection;
+        private final IntList m_handles;
+
+        /**
+         * Marker of the tile, new marker get added.
+         */
+        private final List<A_MapMarker> m_marker;
+
+        /**
+         * Number of marker in m_marker which existed before.
+         */
+        private final int m_existing;
+
+        TileTask(A_Handler<T, ?, ?, ?, ?> handler, T projection, IntList handles, List<A_MapMarker> marker) {
+            m_handler = handler;
+            m_projection = projection;
+            m_handles = handles;
+            m_marker = marker;
+            m_existing = marker.size();
+        }
+
+        @Override
+        protected void compute() {
+            A_MapMarker instance = m_handler.getMarkerInstance();
+            MarkerGrid grid = new MarkerGrid(m_handler.getMinPixelDistance());
+            double[] pos = new double[2];
+            for (A_MapMarker marker : m_marker) {
+                marker.getCenterPixelPosition(m_projection, pos);
+                grid.put(marker, pos[0], pos[1]);
+            }
+            for (int i = 0; i < m_handles.size(); i++) {
+                int h = m_handles.get(i);
+                m_handler.setElementMarker(h, instance.addElementToMarker(h, m_marker, grid, m_projection));
+            }
+        }
+
+        /**
+         * Gets the marker created by this task.
+         *
+         * @return new marker
+         */
+        List<A_MapMarker> getNewMarker() {
+            return m_marker.subList(m_existing, m_marker.size());
+        }
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param handler whose elements get clustered
+     */
+    ParallelClustering(A_Handler<T, ?, ?, ?, ?> handler) {
+        m_handler = handler;
+    }
+
+    /**
+     * Adds the elements to the marker of the handler, like A_Handler.updateMarker. Runs on the update thread.
+     *
+     * @param projection    of the map
+     * @param elementsToAdd handles of the elements to add
+     */
+    void addElements(T projection, IntList elementsToAdd) {
+        A_Handler<T, ?, ?, ?, ?> handler = m_handler;
+        if (m_pool == null) {
+            m_pool = new ForkJoinPool();
+        }
+        ForkJoinPool pool = m_pool;
+        int minDistance = handler.getMinPixelDistance();
+        A_MapMarker instance = handler.getMarkerInstance();
+        double[] pos = new double[2 * elementsToAdd.size()];
+        instance.getPixelPositions(elementsToAdd, projection, pos);
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < elementsToAdd.size(); i++) {
+            minX = Math.min(minX, pos[2 * i]);
+            maxX = Math.max(maxX, pos[2 * i]);
+            minY = Math.min(minY, pos[2 * i + 1]);
+            maxY = Math.max(maxY, pos[2 * i + 1]);
+        }
+        //About 4 tiles per thread, to balance dense and empty tiles
+        int tilesPerAxis = (int) Math.ceil(Math.sqrt(4 * pool.getParallelism()));
+        double tileSize = Math.max(MIN_TILE_FACTOR * Math.max(1, minDistance), Math.max(maxX - minX, maxY - minY) / tilesPerAxis);
+
+        Map<Long, IntList> tileHandles = new HashMap<>();
+        for (int i = 0; i < elementsToAdd.size(); i++) {
+            long tile = getTile(pos[2 * i], pos[2 * i + 1], tileSize);
+            IntList list = tileHandles.get(tile);
+            if (list == null) {
+                list = new IntList();
+                tileHandles.put(tile, list);
+            }
+            list.add(elementsToAdd.get(i));
+        }
+        Map<Long, List<A_MapMarker>> tileMarker = new HashMap<>();
+        double[] center = new double[2];
+        for (A_MapMarker marker : handler.m_marker) {
+            if (!marker.isOnMap()) {
+                continue;
+            }
+            marker.getCenterPixelPosition(projection, center);
+            long tile = getTile(center[0], center[1], tileSize);
+            if (!tileHandles.containsKey(tile)) {
+                continue;
+            }
+            List<A_MapMarker> list = tileMarker.get(tile);
+            if (list == null) {
+                list = new ArrayList<>();
+                tileMarker.put(tile, list);
+            }
+            list.add(marker);
+        }
+
+        final List<TileTask<T>> tasks = new ArrayList<>(tileHandles.size());
+        for (Map.Entry<Long, IntList> entry : tileHandles.entrySet()) {
+            List<A_MapMarker> marker = tileMarker.get(entry.getKey());
+            tasks.add(new TileTask<>(handler, projection, entry.getValue(), marker == null ? new ArrayList<A_MapMarker>() : marker));
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        for (TileTask<T> task : tasks) {
+            handler.m_marker.addAll(task.getNewMarker());
+        }
+        Log.i(A_Handler.LOG_NAME, "Parallel clustering of " + elementsToAdd.size() + " elements in " + tasks.size() + " tiles");
+        mergeAtSeams(handler, projection, tileSize);
+    }
+
+    /**
+     * Shuts the thread pool down. Runs on the update thread, a new pool is created by the next addElements call.
+     */
+    void shutdown() {
+        if (m_pool != null) {
+            m_pool.shutdown();
+            m_pool = null;
+        }
+    }
+
+    /**
+     * Merges marker which are closer than the min pixel distance to each other. Only marker within the min pixel
+     * distance to a tile border are checked, marker within a tile keep their distance by the clustering.
+     *
+     * @param handler    marker handler
+     * @param projection of the map
+     * @param tileSize   size of the tiles in pixel
+     */
+    private static <T> void mergeAtSeams(A_Handler<T, ?, ?, ?, ?> handler, T projection, double tileSize) {
+        int minDistance = handler.getMinPixelDistance();
+        MarkerGrid grid = new MarkerGrid(minDistance);
+        List<A_MapMarker> border = new ArrayList<>();
+        double[] pos = new double[2];
+        for (A_MapMarker marker : handler.m_marker) {
+            if (!marker.isOnMap()) {
+                continue;
+            }
+            marker.getCenterPixelPosition(projection, pos);
+            if (isNearBorder(pos[0], tileSize, minDistance) || isNearBorder(pos[1], tileSize, minDistance)) {
+                grid.put(marker, pos[0], pos[1]);
+                border.add(marker);
+            }
+        }
+        List<A_MapMarker> collect = new ArrayList<>();
+        for (A_MapMarker marker : border) {
+            if (!marker.isOnMap()) {
+                continue;
+            }
+            collect.clear();
+            marker.getCenterPixelPosition(projection, pos);
+            grid.findWithin(pos[0], pos[1], minDistance, collect);
+            collect.remove(marker);
+            if (collect.isEmpty()) {
+                continue;
+            }
+            for (A_MapMarker merged : collect) {
+                grid.remove(merged);
+                IntList handles = merged.getHandles();
+                for (int i = 0; i < handles.size(); i++) {
+                    if (handles.get(i) >= 0) {
+                        handler.setElementMarker(handles.get(i), marker);
+                    }
+                }
+            }
+            marker.addMarker(collect);
+            marker.refresh();
+            //The center moved by the merge, later lookups have to find the marker at its new position
+            marker.getCenterPixelPosition(projection, pos);
+            grid.put(marker, pos[0], pos[1]);
+        }
+    }
+
+    /**
+     * Checks if a pixel value is within the distance to a tile border.
+     *
+     * @param value    pixel value
+     * @param tileSize size of the tiles in pixel
+     * @param distance max distance to the border
+     * @return true, if the value is near to a border
+     */
+    private static boolean isNearBorder(double value, double tileSize, double distance) {
+        double offset = value - Math.floor(value / tileSize) * tileSize;
+        return offset <= distance || tileSize - offset <= distance;
+    }
+
+    private static long getTile(double x, double y, double tileSize) {
+        return ((long) (int) Math.floor(x / tileSize) << 32) | ((int) Math.floor(y / tileSize) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Clusters per Web-Mercator tile (z/x/y), so panning back to a region doesn't need to cluster it again.
+ * <p>
+ * The least recently used tiles are evicted, if the cache holds more tiles than allowed. Entries of an older dataset
+ * version (see invalidate) are not stored.
+ */
+class TileClusterCache {
+
+    /**
+     * Default number of cached tiles.
+     */
+    static final int DEFAULT_MAX_TILES = 256;
+
+    /**
+     * Highest zoom level of tiles.
+     */
+    static final int MAX_LEVEL = 24;
+
+    /**
+     * Clusters by tile key, in access order.
+     */
+    private final LinkedHashMap<Long, ClusterCache.Entry> m_entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * Max number of cached tiles.
+     */
+    private int m_maxTiles;
+
+    /**
+     * Version of the dataset, increased by invalidate.
+     */
+    private int m_version;
+
+    /**
+     * Public constructor.
+     *
+     * @param maxTiles max number of cached tiles
+     */
+    TileClusterCache(int maxTiles) {
+        m_maxTiles = maxTiles;
+    }
+
+    /**
+     * Gets the key of a tile.
+     *
+     * @param z zoom level, not larger than MAX_LEVEL
+     * @param x column of the tile
+     * @param y row of the tile
+     * @return key
+     */
+    static long getKey(int z, int x, int y) {
+        return ((long) z << 48) | ((long) x << 24) | y;
+    }
+
+    /**
+     * Gets the version of the dataset, to be passed to put.
+     *
+     * @return version
+     */
+    synchronized int getVersion() {
+        return m_version;
+    }
+
+    /**
+     * Gets the clusters of a tile.
+     *
+     * @param key of the tile, see getKey
+     * @return clusters or null, if the tile is not cached
+     */
+    synchronized ClusterCache.Entry get(long key) {
+        return m_entries.get(key);
+    }
+
+    /**
+     * Stores the clusters of a tile.
+     *
+     * @param key     of the tile, see getKey
+     * @param entry   clusters of the tile
+     * @param version of the dataset the clusters were computed with, see getVersion
+     */
+    synchronized void put(long key, ClusterCache.Entry entry, int version) {
+        if (version != m_version) {
+            return;
+        }
+        m_entries.put(key, entry);
+        trimToSize(m_maxTiles);
+    }
+
+    /**
+     * Checks if no tile is cached.
+     *
+     * @return true, if the cache is empty
+     */
+    synchronized boolean isEmpty() {
+        return m_entries.isEmpty();
+    }
+
+    /**
+     * Removes the clusters of a tile, e.g. because elements of the tile changed.
+     *
+     * @param key of the tile, see getKey
+     */
+    synchronized void remove(long key) {
+        m_entries.remove(key);
+    }
+
+    /**
+     * Removes all entries, e.g. because the elements or the marker spacing changed.
+     */
+    synchronized void invalidate() {
+        m_version++;
+        clear();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        m_entries.clear();
+    }
+
+    /**
+     * Sets the max number of cached tiles and evicts tiles if needed.
+     *
+     * @param maxTiles max number of tiles
+     */
+    synchronized void setMaxTiles(int maxTiles) {
+        m_maxTiles = maxTiles;
+        trimToSize(maxTiles);
+    }
+
+    /**
+     * Evicts least recently used tiles until the cache doesn't hold more than the given number of tiles.
+     *
+     * @param tiles max number of tiles
+     */
+    private void trimToSize(int tiles) {
+        Iterator<ClusterCache.Entry> it = m_entries.values().iterator();
+        while (m_entries.size() > tiles && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
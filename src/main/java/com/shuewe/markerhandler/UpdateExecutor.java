@@ -0,0 +1,156 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the marker updates of a handler on one background thread.
+ * <p>
+ * Only the latest submitted task is kept: a task which is submitted while another one waits replaces the waiting
+ * one. A running task can check with isCancelled() if a newer task was submitted in the meantime, to skip work which
+ * is superseded anyway. The thread is stopped when idle and started again with the next task.
+ */
+class UpdateExecutor {
+
+    /**
+     * Task to be run by the executor.
+     */
+    abstract static class Task implements Runnable {
+
+        /**
+         * Executor running this task.
+         */
+        private UpdateExecutor m_executor;
+
+        /**
+         * Number of this task, see m_generation of the executor.
+         */
+        private int m_generation;
+
+        /**
+         * Checks if a newer task was submitted after this one.
+         *
+         * @return true, if results of this task are outdated
+         */
+        boolean isCancelled() {
+            return m_executor.m_generation.get() != m_generation;
+        }
+    }
+
+    /**
+     * Time in seconds the thread is kept alive without tasks.
+     */
+    private static final int KEEP_ALIVE = 10;
+
+    /**
+     * The executor with a single thread.
+     */
+    private final ThreadPoolExecutor m_executor;
+
+    /**
+     * Task waiting to be run, null if there is none.
+     */
+    private final AtomicReference<Task> m_pending = new AtomicReference<>();
+
+    /**
+     * Number of the latest submitted task.
+     */
+    private final AtomicInteger m_generation = new AtomicInteger();
+
+    /**
+     * Priority of the thread, see android.os.Process.
+     */
+    private volatile int m_priority = Process.THREAD_PRIORITY_BACKGROUND;
+
+    /**
+     * Runs pending tasks until there are none left.
+     */
+    private final Runnable m_drain = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(m_priority);
+            Task task;
+            while ((task = m_pending.getAndSet(null)) != null) {
+                task.run();
+            }
+        }
+    };
+
+    /**
+     * Public constructor.
+     *
+     * @param name of the thread
+     */
+    UpdateExecutor(final String name) {
+        m_executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        m_executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the priority of the thread, used from the next task on.
+     *
+     * @param priority see android.os.Process, e.g. Process.THREAD_PRIORITY_BACKGROUND (default)
+     */
+    void setPriority(int priority) {
+        m_priority = priority;
+    }
+
+    /**
+     * Submits a task. A waiting task gets replaced, a running task gets cancelled.
+     *
+     * @param task to be run
+     */
+    synchronized void submit(Task task) {
+        task.m_executor = this;
+        task.m_generation = m_generation.incrementAndGet();
+        if (m_pending.getAndSet(task) == null) {
+            m_executor.execute(m_drain);
+        }
+    }
+
+    /**
+     * Submits a task without cancelling the running one. A waiting task gets replaced, so the task has to do the work
+     * of the waiting one as well.
+     *
+     * @param task to be run
+     */
+    synchronized void enqueue(Task task) {
+        task.m_executor = this;
+        task.m_generation = m_generation.get();
+        if (m_pending.getAndSet(task) == null) {
+            m_executor.execute(m_drain);
+        }
+    }
+
+    /**
+     * Cancels the running and the waiting task.
+     */
+    synchronized void cancel() {
+        m_generation.incrementAndGet();
+        m_pending.set(null);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Computes the clusters of the zoom levels next to the current one in advance and stores them in the ClusterCache, so
+ * the next zoom step of the user can restore them instead of clustering.
+ * <p>
+ * Runs on its own thread with the lowest priority. Each prefetch replaces a waiting one and gets cancelled by cancel(),
+ * which has to be called when a real update is requested.
+ */
+class ZoomPrefetcher {
+
+    /**
+     * Handler whose elements get clustered.
+     */
+    private final A_Handler m_handler;
+
+    /**
+     * Cache to store the clusters in.
+     */
+    private final ClusterCache m_cache;
+
+    /**
+     * Thread for the prefetch.
+     */
+    private final UpdateExecutor m_executor;
+
+    /**
+     * Public constructor.
+     *
+     * @param handler whose elements get clustered
+     * @param cache   to store the clusters in
+     */
+    ZoomPrefetcher(A_Handler handler, ClusterCache cache) {
+        m_handler = handler;
+        m_cache = cache;
+        m_executor = new UpdateExecutor(A_Handler.LOG_NAME + "-prefetch");
+        m_executor.setPriority(Process.THREAD_PRIORITY_LOWEST);
+    }
+
+    /**
+     * Starts the prefetch of the zoom levels above and below the current one.
+     *
+     * @param bounds  visible region (north, west, south, east)
+     * @param zoom    of the map
+     * @param version of the dataset, see ClusterCache.getVersion
+     */
+    void prefetch(final double[] bounds, final float zoom, final int version) {
+        m_executor.submit(new UpdateExecutor.Task() {
+            @Override
+            public void run() {
+                long t = System.currentTimeMillis();
+                int level = (int) Math.floor(zoom);
+                //Elements are not added or removed while the store is locked
+                synchronized (m_handler.getStore()) {
+                    prefetchLevel(this, bounds, zoom, level + 1, version);
+                    prefetchLevel(this, bounds, zoom, level - 1, version);
+                }
+                Log.i(A_Handler.LOG_NAME, "Prefetch " + (isCancelled() ? "cancelled: " : "ready: ") + (System.currentTimeMillis() - t));
+            }
+        });
+    }
+
+    /**
+     * Cancels the running and the waiting prefetch.
+     */
+    void cancel() {
+        m_executor.cancel();
+    }
+
+    /**
+     * Clusters the elements in the region which is visible at the given zoom level, with the same center as the
+     * current region.
+     *
+     * @param task    running the prefetch
+     * @param bounds  current visible region (north, west, south, east)
+     * @param zoom    current zoom of the map
+     * @param level   zoom level to prefetch
+     * @param version of the dataset
+     */
+    private void prefetchLevel(UpdateExecutor.Task task, double[] bounds, float zoom, int level, int version) {
+        if (level < 0 || task.isCancelled() || m_cache.get(level) != null || bounds[1] > bounds[3]) {
+            //Datumsgrenze is not supported, the clusters get computed on the zoom change then
+            return;
+        }
+        double factor = Math.pow(2, zoom - level);
+        double west = MercatorProjection.getNormalizedX(bounds[1]);
+        double east = MercatorProjection.getNormalizedX(bounds[3]);
+        double north = MercatorProjection.getNormalizedY(bounds[0]);
+        double south = MercatorProjection.getNormalizedY(bounds[2]);
+        double centerX = (west + east) / 2, halfWidth = (east - west) / 2 * factor;
+        double centerY = (north + south) / 2, halfHeight = (south - north) / 2 * factor;
+        LatLngBounds region = new LatLngBounds(
+                new LatLng(MercatorProjection.getLatitude(Math.max(0, centerY - halfHeight)), MercatorProjection.getLongitude(Math.max(0, centerX - halfWidth))),
+                new LatLng(MercatorProjection.getLatitude(Math.min(1, centerY + halfHeight)), MercatorProjection.getLongitude(Math.min(1, centerX + halfWidth))));
+        IntList handles = new IntList();
+        m_handler.getStore().query(region, handles);
+        handles.sort();
+        ClusterCache.Entry entry = ClusterCache.cluster(m_handler.getStore(), handles, m_handler.getWorldTileSize() * Math.pow(2, level), m_handler.getMinPixelDistance(), level, task);
+        if (entry != null) {
+            m_cache.put(entry, version);
+        }
+    }
+}
@@ -27,9 +27,11 @@ import com.mapbox.mapboxsdk.maps.Style;
 import com.mapbox.mapboxsdk.plugins.annotation.OnSymbolClickListener;
 import com.mapbox.mapboxsdk.plugins.annotation.Symbol;
 import com.mapbox.mapboxsdk.plugins.annotation.SymbolManager;
+import com.mapbox.mapboxsdk.plugins.annotation.SymbolOptions;
 import com.mapbox.mapboxsdk.utils.BitmapUtils;
 import com.mapbox.mapboxsdk.utils.ColorUtils;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -45,7 +47,11 @@ public class HandlerMapbox extends A_Handler<Projection, SymbolManager, Symbol,
 
     private MercatorProjection m_mercatorProjection;
 
-    private MercatorProjection m_queueMercatorProjection;
+    /**
+     * Size of the map view at the last update request, read on UI thread.
+     */
+    private volatile float m_viewWidth, m_viewHeight;
+
 
     private static OnSymbolClickListener currentClickListener=null;
 
@@ -137,8 +143,13 @@ public class HandlerMapbox extends A_Handler<Projection, SymbolManager, Symbol,
 
     @Override
     protected void updateSingleMarker(SymbolManager map,A_MapMarker marker){
+        Symbol symbol = ((MapMarkerMapbox)marker).m_marker;
+        if (symbol == null) {
+            //Marker is not on the map
+            return;
+        }
         marker.updateMarker();
-        map.update(((MapMarkerMapbox)marker).m_marker);
+        map.update(symbol);
     }
 
 
@@ -174,9 +185,9 @@ public class HandlerMapbox extends A_Handler<Projection, SymbolManager, Symbol,
     @Override
     public void showCurrentSortableMarker() {
         //Check if element is on map
-        if (m_markerMap.containsKey(getSortableElement())) {
+        if (getMarkerOfElement(getSortableElement()) != null) {
             //Yes, it is..
-            Symbol s = ((MapMarkerMapbox) m_markerMap.get(getSortableElement())).getMarker();
+            Symbol s = ((MapMarkerMapbox) getMarkerOfElement(getSortableElement())).getMarker();
             if (m_mapIntance == null) {
                 return;
             }
@@ -191,36 +202,71 @@ public class HandlerMapbox extends A_Handler<Projection, SymbolManager, Symbol,
         m_mapIntance.animateCamera(CameraUpdateFactory.newCameraPosition(position));
     }
 
-    //TODO In der Methode lassen wir alles im main thread laufen, weil pixelForLatLng nicht im Hintergrund funktioniert.. Eigene implementierung der Funktion sollte das lösen können
+    /**
+     * Reads the size of the map view on the UI thread. The pixel positions are computed on the update thread by a
+     * MercatorProjection of the visible bounds, see updateMap, so pixelForLatLng of the map is not needed.
+     */
     @Override
     public void updateMarkerOnMap(final Projection projection, final float zoom) {
-        if (m_isBusy) {
-            setQueue(projection, zoom);
-            LatLngBounds bounds = projection.getVisibleRegion().latLngBounds;
-            m_queueMercatorProjection=new MercatorProjection(m_mapIntance.getWidth(),m_mapIntance.getHeight()).withNorthWestBorder(new LatLng(bounds.getLatNorth(),bounds.getLonWest()))
-                    .withEastSouthBorder(new LatLng(bounds.getLatSouth(),bounds.getLonEast()));
-            return;
-        }
-        LatLngBounds bounds = projection.getVisibleRegion().latLngBounds;
-        m_mercatorProjection=new MercatorProjection(m_mapIntance.getWidth(),m_mapIntance.getHeight()).withNorthWestBorder(new LatLng(bounds.getLatNorth(),bounds.getLonWest()))
-                .withEastSouthBorder(new LatLng(bounds.getLatSouth(),bounds.getLonEast()));
+        m_viewWidth=m_mapIntance.getWidth();
+        m_viewHeight=m_mapIntance.getHeight();
         super.updateMarkerOnMap(projection,zoom);
     }
 
     @Override
-    protected void processQueue(){
-        m_mercatorProjection=m_queueMercatorProjection;
-        super.processQueue();
+    protected void updateMap(Projection projection, LatLngBounds bounds, float zoom) {
+        m_mercatorProjection=new MercatorProjection(m_viewWidth,m_viewHeight,
+                new LatLng(bounds.getLatNorth(),bounds.getLonWest()),new LatLng(bounds.getLatSouth(),bounds.getLonEast()));
+        super.updateMap(projection,bounds,zoom);
     }
 
+    /**
+     * Applies all changes at once with the list methods of the SymbolManager, each call refreshes the symbol source only
+     * once. Symbols of removed marker are reused for new marker, only the remaining ones are deleted or created.
+     */
     @Override
-    protected A_MapMarker getMarkerInstance() {
-        return new MapMarkerMapbox(this, m_textGenerator);
+    protected boolean applyChanges(MarkerChangeSet<Symbol> changes, long deadline) {
+        List<Symbol> removed = changes.getRemoved();
+        List<A_MapMarker> added = changes.getAdded();
+        int reused = Math.min(removed.size(), added.size());
+        List<Symbol> update = new ArrayList<>(changes.getUpdated().size() + reused);
+        for (A_MapMarker marker : changes.getUpdated()) {
+            ((MapMarkerMapbox) marker).updateSymbol(marker.getColor());
+            update.add(((MapMarkerMapbox) marker).getMarker());
+        }
+        for (int i = 0; i < reused; i++) {
+            m_markerOnMap.remove(removed.get(i));
+            ((MapMarkerMapbox) added.get(i)).reuseSymbol(removed.get(i), added.get(i).getColor());
+            update.add(removed.get(i));
+        }
+        List<Symbol> delete = new ArrayList<>(removed.size() - reused);
+        for (int i = reused; i < removed.size(); i++) {
+            m_markerOnMap.remove(removed.get(i));
+            delete.add(removed.get(i));
+        }
+        if (!delete.isEmpty()) {
+            m_map.delete(delete);
+        }
+        if (!update.isEmpty()) {
+            m_map.update(update);
+        }
+        List<SymbolOptions> create = new ArrayList<>(added.size() - reused);
+        for (int i = reused; i < added.size(); i++) {
+            create.add(((MapMarkerMapbox) added.get(i)).getSymbolOptions(added.get(i).getColor()));
+        }
+        if (!create.isEmpty()) {
+            List<Symbol> created = m_map.create(create);
+            for (int i = 0; i < created.size(); i++) {
+                ((MapMarkerMapbox) added.get(reused + i)).setSymbol(created.get(i));
+            }
+        }
+        changes.setApplied();
+        return true;
     }
 
     @Override
-    protected boolean isInRegion(LatLngBounds bounds, LatLng place) {
-        return bounds.contains(new LatLngMapboxWrapper(place).toOtherLatLng());
+    protected A_MapMarker getMarkerInstance() {
+        return new MapMarkerMapbox(this, m_textGenerator);
     }
 
     @Override
@@ -228,6 +274,20 @@ public class HandlerMapbox extends A_Handler<Projection, SymbolManager, Symbol,
         return projection.getVisibleRegion().latLngBounds;
     }
 
+    @Override
+    protected com.shuewe.markerhandler.LatLngBounds toLatLngBounds(LatLngBounds bounds) {
+        return new com.shuewe.markerhandler.LatLngBounds(new LatLng(bounds.getLatNorth(), bounds.getLonWest()),
+                new LatLng(bounds.getLatSouth(), bounds.getLonEast()));
+    }
+
+    /**
+     * Mapbox uses tiles of 512 pixel (dp) for zoom levels.
+     */
+    @Override
+    protected double getWorldTileSize() {
+        return 2 * super.getWorldTileSize();
+    }
+
     public void registerIcons(Context context, Style style){
             registerIcons(context,style,R.drawable.marker_blue);
     }
@@ -0,0 +1,388 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.PointF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+
+import com.mapbox.geojson.Feature;
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.mapboxsdk.camera.CameraPosition;
+import com.mapbox.mapboxsdk.camera.CameraUpdateFactory;
+import com.mapbox.mapboxsdk.geometry.LatLngBounds;
+import com.mapbox.mapboxsdk.maps.MapboxMap;
+import com.mapbox.mapboxsdk.maps.Projection;
+import com.mapbox.mapboxsdk.maps.Style;
+import com.mapbox.mapboxsdk.style.layers.SymbolLayer;
+import com.mapbox.mapboxsdk.style.sources.GeoJsonSource;
+import com.mapbox.mapboxsdk.utils.BitmapUtils;
+import com.mapbox.mapboxsdk.utils.ColorUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mapbox.mapboxsdk.style.expressions.Expression.get;
+import static com.mapbox.mapboxsdk.style.expressions.Expression.toColor;
+import static com.mapbox.mapboxsdk.style.expressions.Expression.toNumber;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.iconAllowOverlap;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.iconColor;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.iconImage;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.iconOffset;
+import static com.mapbox.mapboxsdk.style.layers.PropertyFactory.iconSize;
+
+/**
+ * Implementation of A_Handler for mapbox, without the annotation plugin.
+ * <p>
+ * All marker are written as one FeatureCollection into a GeoJsonSource, which is drawn by a data driven SymbolLayer.
+ * Color, icon, size and number of elements of a marker are properties of its feature. The source is refreshed once
+ * per update, independent of the number of changed marker. Single changes outside of an update (removeMarker,
+ * addElementWithId, toggled marker) are collected and the source is refreshed once for all of them.
+ */
+public class HandlerMapboxGeoJson extends A_Handler<Projection, Style, Feature, LatLngBounds, String> implements MapboxMap.OnMapClickListener {
+
+    /**
+     * ID of the GeoJsonSource holding the marker.
+     */
+    public static final String SOURCE_ID = "markerhandler-source";
+
+    /**
+     * ID of the SymbolLayer drawing the marker.
+     */
+    public static final String LAYER_ID = "markerhandler-layer";
+
+    /**
+     * Feature property with the ID of the marker.
+     */
+    static final String PROPERTY_ID = "id";
+
+    /**
+     * Feature property with the color of the marker.
+     */
+    static final String PROPERTY_COLOR = "color";
+
+    /**
+     * Feature property with the icon of the marker.
+     */
+    static final String PROPERTY_ICON = "icon";
+
+    /**
+     * Feature property with the icon size of the marker.
+     */
+    static final String PROPERTY_SIZE = "size";
+
+    /**
+     * Feature property with the number of elements in the marker.
+     */
+    public static final String PROPERTY_COUNT = "count";
+
+    private String m_markerId = "marker-id_0";
+
+    private MercatorProjection m_mercatorProjection;
+
+    /**
+     * Size of the map view at the last update request, read on UI thread.
+     */
+    private volatile float m_viewWidth, m_viewHeight;
+
+    /**
+     * Map to bind A_MapMarker.COLOR values to color values suitable for mapbox.
+     */
+    Map<A_MapMarker.COLOR, String> COLOR_MAP = new HashMap<A_MapMarker.COLOR, String>() {{
+        put(A_MapMarker.COLOR.BLUE, ColorUtils.colorToRgbaString(Color.BLUE));
+        put(A_MapMarker.COLOR.RED, ColorUtils.colorToRgbaString(Color.RED));
+        put(A_MapMarker.COLOR.GREEN, "#05844D");
+        put(A_MapMarker.COLOR.YELLOW, "#FFB407");
+    }};
+
+    /**
+     * Map instance, needed for click handling and to move the camera.
+     */
+    private MapboxMap m_mapInstance;
+
+    /**
+     * Source of the marker layer.
+     */
+    private GeoJsonSource m_source;
+
+    /**
+     * Features in the source by marker ID, in order of insertion. Only used on UI thread.
+     */
+    private final Map<String, Feature> m_features = new LinkedHashMap<>();
+
+    /**
+     * Marker by ID, to map rendered features back to the marker. Only used on UI thread.
+     */
+    private final Map<String, A_MapMarker> m_featureMarker = new HashMap<>();
+
+    /**
+     * Indicates if a refresh of the source is posted. Only used on UI thread.
+     */
+    private boolean m_refreshPosted;
+
+    /**
+     * Handler of the UI thread to post the refresh of the source.
+     */
+    private final Handler m_uiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Refreshes the source after single changes, see postRefresh.
+     */
+    private final Runnable m_refresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshSource();
+        }
+    };
+
+    /**
+     * Public constructor.
+     *
+     * @param elements List of I_SortableMapElements to be displayed on map
+     * @param metrics  of device
+     */
+    public HandlerMapboxGeoJson(List<? extends I_SortableMapElement> elements, DisplayMetrics metrics) {
+        super(elements, metrics);
+    }
+
+    /**
+     * Init method for mapbox. Adds source and layer for the marker to the style.
+     *
+     * @param context     Activity context
+     * @param style       loaded style of the map
+     * @param mapInstance instance of the map
+     */
+    public void init(Context context, Style style, MapboxMap mapInstance) {
+        m_mapInstance = mapInstance;
+        m_source = new GeoJsonSource(SOURCE_ID, FeatureCollection.fromFeatures(new ArrayList<Feature>()));
+        style.addSource(m_source);
+        style.addLayer(new SymbolLayer(LAYER_ID, SOURCE_ID).withProperties(
+                iconImage(get(PROPERTY_ICON)),
+                iconColor(toColor(get(PROPERTY_COLOR))),
+                iconSize(toNumber(get(PROPERTY_SIZE))),
+                iconOffset(new Float[]{0f, -30f}),
+                iconAllowOverlap(true)));
+        init(context, style);
+        if (m_markerClickListener != null) {
+            registerClickListener();
+        }
+    }
+
+    @Override
+    protected void registerClickListener() {
+        if (m_mapInstance == null) {
+            //Registered in init
+            return;
+        }
+        m_mapInstance.removeOnMapClickListener(this);
+        m_mapInstance.addOnMapClickListener(this);
+    }
+
+    @Override
+    public boolean onMapClick(com.mapbox.mapboxsdk.geometry.LatLng point) {
+        if (m_markerClickListener == null) {
+            return false;
+        }
+        PointF pixel = m_mapInstance.getProjection().toScreenLocation(point);
+        List<Feature> features = m_mapInstance.queryRenderedFeatures(pixel, LAYER_ID);
+        A_MapMarker marker = null;
+        if (features != null && !features.isEmpty()) {
+            marker = m_featureMarker.get(features.get(0).getStringProperty(PROPERTY_ID));
+        }
+        handleClick(marker == null ? null : (Feature) marker.getMarker());
+        return marker != null;
+    }
+
+    @Override
+    Map getColorMap() {
+        return COLOR_MAP;
+    }
+
+    @Override
+    protected void updateSingleMarker(Style map, A_MapMarker marker) {
+        marker.updateMarker();
+        putFeature(marker);
+        postRefresh();
+    }
+
+    @Override
+    public void removeMarker(Feature marker) {
+        if (marker != null) {
+            m_markerOnMap.remove(marker);
+            removeFeature(marker);
+            postRefresh();
+        }
+    }
+
+    @Override
+    public A_MapMarker addElementWithId(I_SortableMapElement element, String infoText, A_MapMarker.COLOR c) {
+        A_MapMarker marker = super.addElementWithId(element, infoText, c);
+        putFeature(marker);
+        postRefresh();
+        return marker;
+    }
+
+    @Override
+    public void updateMarkerOnMap(final Projection projection, final float zoom) {
+        m_viewWidth = m_mapInstance.getWidth();
+        m_viewHeight = m_mapInstance.getHeight();
+        super.updateMarkerOnMap(projection, zoom);
+    }
+
+    @Override
+    protected void updateMap(Projection projection, LatLngBounds bounds, float zoom) {
+        m_mercatorProjection = new MercatorProjection(m_viewWidth, m_viewHeight,
+                new LatLng(bounds.getLatNorth(), bounds.getLonWest()), new LatLng(bounds.getLatSouth(), bounds.getLonEast()));
+        super.updateMap(projection, bounds, zoom);
+    }
+
+    /**
+     * Applies all changes to the feature list and sets the FeatureCollection once.
+     */
+    @Override
+    protected boolean applyChanges(MarkerChangeSet<Feature> changes, long deadline) {
+        for (Feature feature : changes.getRemoved()) {
+            m_markerOnMap.remove(feature);
+            removeFeature(feature);
+        }
+        for (A_MapMarker marker : changes.getUpdated()) {
+            m_markerOnMap.remove(marker.getMarker());
+            marker.setMarker(m_map);
+            putFeature(marker);
+        }
+        for (A_MapMarker marker : changes.getAdded()) {
+            marker.setMarker(m_map);
+            putFeature(marker);
+        }
+        if (changes.size() > 0) {
+            refreshSource();
+        }
+        changes.setApplied();
+        return true;
+    }
+
+    /**
+     * Adds or replaces the feature of a marker.
+     *
+     * @param marker with new feature
+     */
+    private void putFeature(A_MapMarker marker) {
+        String id = marker.getID().toString();
+        m_features.put(id, (Feature) marker.getMarker());
+        m_featureMarker.put(id, marker);
+        m_markerOnMap.put(marker.getMarker(), marker);
+    }
+
+    /**
+     * Removes a feature, if it is still the current feature of its marker.
+     *
+     * @param feature to be removed
+     */
+    private void removeFeature(Feature feature) {
+        String id = feature.getStringProperty(PROPERTY_ID);
+        if (m_features.get(id) == feature) {
+            m_features.remove(id);
+            m_featureMarker.remove(id);
+        }
+    }
+
+    /**
+     * Refreshes the source with the next loop of the UI thread, so the source is set once for many single changes.
+     */
+    private void postRefresh() {
+        if (!m_refreshPosted) {
+            m_refreshPosted = true;
+            m_uiHandler.post(m_refresh);
+        }
+    }
+
+    /**
+     * Sets the current features to the source. A posted refresh is not needed any more then.
+     */
+    private void refreshSource() {
+        if (m_refreshPosted) {
+            m_uiHandler.removeCallbacks(m_refresh);
+            m_refreshPosted = false;
+        }
+        if (m_source != null) {
+            m_source.setGeoJson(FeatureCollection.fromFeatures(new ArrayList<>(m_features.values())));
+        }
+    }
+
+    @Override
+    public void showCurrentSortableMarker() {
+        if (m_mapInstance == null) {
+            return;
+        }
+        //Check if element is on map
+        A_MapMarker marker = getMarkerOfElement(getSortableElement());
+        if (marker != null) {
+            //Yes, it is..
+            CameraPosition position = new CameraPosition.Builder().target(new LatLngMapboxWrapper(marker.m_center).toOtherLatLng()).build();
+            m_mapInstance.animateCamera(CameraUpdateFactory.newCameraPosition(position));
+            toggleMarker(marker);
+            return;
+        }
+        //Element is not on map -> move to element position
+        m_chooseCursor = true; //Flag indicates, that this method has to be called again to activate marker
+        CameraPosition position = new CameraPosition.Builder().target(new LatLngMapboxWrapper(getSortableElement().getLatLng()).toOtherLatLng()).build();
+        m_mapInstance.animateCamera(CameraUpdateFactory.newCameraPosition(position));
+    }
+
+    @Override
+    protected A_MapMarker getMarkerInstance() {
+        return new MapMarkerMapboxGeoJson(this, m_textGenerator);
+    }
+
+    @Override
+    protected LatLngBounds getVisibleRegion(Projection projection) {
+        return projection.getVisibleRegion().latLngBounds;
+    }
+
+    @Override
+    protected com.shuewe.markerhandler.LatLngBounds toLatLngBounds(LatLngBounds bounds) {
+        return new com.shuewe.markerhandler.LatLngBounds(new LatLng(bounds.getLatNorth(), bounds.getLonWest()),
+                new LatLng(bounds.getLatSouth(), bounds.getLonEast()));
+    }
+
+    /**
+     * Mapbox uses tiles of 512 pixel (dp) for zoom levels.
+     */
+    @Override
+    protected double getWorldTileSize() {
+        return 2 * super.getWorldTileSize();
+    }
+
+    public void registerIcons(Context context, Style style) {
+        registerIcons(context, style, R.drawable.marker_blue);
+    }
+
+    public void registerIcons(Context context, Style style, Integer drawable) {
+        m_markerId = m_markerId + drawable;
+        style.addImage(m_markerId,
+                BitmapUtils.getBitmapFromDrawable(context.getResources().getDrawable(drawable)),
+                true);
+    }
+
+    public MercatorProjection getMercatorProjection() {
+        return m_mercatorProjection;
+    }
+
+    String getMarkerID() {
+        return m_markerId;
+    }
+}
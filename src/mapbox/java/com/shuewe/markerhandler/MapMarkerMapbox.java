@@ -12,7 +12,6 @@ package com.shuewe.markerhandler;
 
 import android.graphics.Color;
 import android.graphics.PointF;
-import android.util.Log;
 
 import com.mapbox.mapboxsdk.maps.Projection;
 import com.mapbox.mapboxsdk.plugins.annotation.Symbol;
@@ -52,20 +51,66 @@ public class MapMarkerMapbox extends A_MapMarker<Symbol, SymbolManager, Projecti
 
     @Override
     public Symbol setMarker(SymbolManager map, COLOR c) {
-        m_isTouched = false;
         if (m_marker != null) {
-            m_handler.m_markerOnMap.remove(m_marker);
-            map.delete(m_marker);
+            //Change existing symbol instead of deleting and creating it
+            updateSymbol(c);
+            map.update(m_marker);
+            return m_marker;
         }
+        setSymbol(map.create(getSymbolOptions(c)));
+        return m_marker;
+    }
+
+    /**
+     * Creates the options for a new symbol of this marker, see setSymbol.
+     *
+     * @param c color of the symbol
+     * @return SymbolOptions to be created by the SymbolManager
+     */
+    SymbolOptions getSymbolOptions(COLOR c) {
         setColor(c);
-        m_marker = map.create(new SymbolOptions()
+        return new SymbolOptions()
                 .withLatLng(new com.mapbox.mapboxsdk.geometry.LatLng(m_center.latitude, m_center.longitude))
                 .withIconSize((float) (0.35f*m_handler.getMarkerSizeFactor()))
                 .withIconOffset(new Float[]{0f,-30f})
                 .withIconImage(m_markerId)
-                .withIconColor((String)m_handler.getColorMap().get(c)));
+                .withIconColor((String)m_handler.getColorMap().get(c));
+    }
+
+    /**
+     * Sets the symbol created from getSymbolOptions.
+     *
+     * @param symbol created by the SymbolManager
+     */
+    void setSymbol(Symbol symbol) {
+        m_isTouched = false;
+        m_marker = symbol;
+        m_handler.m_markerOnMap.put(m_marker, this);
+    }
+
+    /**
+     * Takes over a symbol of a removed marker and changes it to this marker. Needs to be applied by SymbolManager.update.
+     *
+     * @param symbol to be reused
+     * @param c      color of the symbol
+     */
+    void reuseSymbol(Symbol symbol, COLOR c) {
+        m_marker = symbol;
+        updateSymbol(c);
         m_handler.m_markerOnMap.put(m_marker, this);
-        return m_marker;
+    }
+
+    /**
+     * Changes the existing symbol to the current center and color. Needs to be applied by SymbolManager.update.
+     *
+     * @param c color of the symbol
+     */
+    void updateSymbol(COLOR c) {
+        m_isTouched = false;
+        setColor(c);
+        m_marker.setLatLng(new com.mapbox.mapboxsdk.geometry.LatLng(m_center.latitude, m_center.longitude));
+        m_marker.setIconSize((float) (0.35f*m_handler.getMarkerSizeFactor()));
+        m_marker.setIconColor((String)m_handler.getColorMap().get(c));
     }
 
     /**
@@ -81,18 +126,38 @@ public class MapMarkerMapbox extends A_MapMarker<Symbol, SymbolManager, Projecti
     }
 
     @Override
-    protected double getPixelDistance(LatLng pos2, Projection projection) {
-        Log.d("p1", m_center.toString());
-        Log.d("p2", pos2.toString());
+    protected void getPixelPosition(double latitude, double longitude, Projection projection, double[] out) {
+        MercatorProjection p = ((HandlerMapbox)m_handler).getMercatorProjection();
+        out[0] = p.getPixelX(MercatorProjection.getNormalizedX(longitude));
+        out[1] = p.getPixelY(MercatorProjection.getNormalizedY(latitude));
+    }
+
+    @Override
+    protected void getPixelPosition(int handle, Projection projection, double[] out) {
+        MercatorProjection p = ((HandlerMapbox)m_handler).getMercatorProjection();
+        ElementStore store = m_handler.getStore();
+        out[0] = p.getPixelX(store.getX(handle));
+        out[1] = p.getPixelY(store.getY(handle));
+    }
+
+    @Override
+    protected void getPixelPositions(IntList handles, Projection projection, double[] out) {
+        m_handler.getStore().project(((HandlerMapbox)m_handler).getMercatorProjection(), handles, out);
+    }
+
+    @Override
+    protected void getCenterPixelPosition(Projection projection, double[] out) {
         MercatorProjection p = ((HandlerMapbox)m_handler).getMercatorProjection();
-        MercatorProjection.Coordinates c1 = p.getCoordinates(m_center);
-        MercatorProjection.Coordinates c2 = p.getCoordinates(pos2);
-        return Math.sqrt((c1.getX()-c2.getX())*(c1.getX()-c2.getX())+(c1.getY()-c2.getY())*(c1.getY()-c2.getY()));
+        out[0] = p.getPixelX(m_centerX);
+        out[1] = p.getPixelY(m_centerY);
     }
 
     @Override
     protected void updateMarker() {
+        if (m_marker == null) {
+            //Not on the map, or the symbol was reused by another marker
+            return;
+        }
         m_marker.setIconColor((String)m_handler.getColorMap().get(getColor()));
-
     }
 }
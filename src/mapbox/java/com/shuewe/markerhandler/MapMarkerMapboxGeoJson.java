@@ -0,0 +1,96 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import com.mapbox.geojson.Feature;
+import com.mapbox.geojson.Point;
+import com.mapbox.mapboxsdk.maps.Projection;
+import com.mapbox.mapboxsdk.maps.Style;
+
+/**
+ * Implementation of A_MapMarker for mapbox, drawn as feature of the GeoJsonSource of HandlerMapboxGeoJson.
+ * <p>
+ * Features are immutable, so every change of the marker creates a new feature. The handler collects them and
+ * refreshes the source.
+ */
+public class MapMarkerMapboxGeoJson extends A_MapMarker<Feature, Style, Projection, String> {
+
+    /**
+     * Public constructor.
+     *
+     * @param handler       A_Handler instance
+     * @param textGenerator to generate info text of marker
+     */
+    public MapMarkerMapboxGeoJson(A_Handler handler, MarkerTextGenerator textGenerator) {
+        super(handler, textGenerator);
+    }
+
+    @Override
+    public A_MapMarker getInstance() {
+        return new MapMarkerMapboxGeoJson(m_handler, m_textGenerator);
+    }
+
+    @Override
+    public Feature setMarker(Style map, COLOR c) {
+        setColor(c);
+        m_isTouched = false;
+        m_marker = createFeature();
+        return m_marker;
+    }
+
+    /**
+     * Creates the feature of this marker, with id, color, icon, size and number of elements as properties.
+     *
+     * @return new Feature
+     */
+    private Feature createFeature() {
+        HandlerMapboxGeoJson handler = (HandlerMapboxGeoJson) m_handler;
+        Feature feature = Feature.fromGeometry(Point.fromLngLat(m_center.longitude, m_center.latitude));
+        feature.addStringProperty(HandlerMapboxGeoJson.PROPERTY_ID, getID().toString());
+        feature.addStringProperty(HandlerMapboxGeoJson.PROPERTY_COLOR, (String) m_handler.getColorMap().get(getColor()));
+        feature.addStringProperty(HandlerMapboxGeoJson.PROPERTY_ICON, handler.getMarkerID());
+        feature.addNumberProperty(HandlerMapboxGeoJson.PROPERTY_SIZE, 0.35f * m_handler.getMarkerSizeFactor());
+        feature.addNumberProperty(HandlerMapboxGeoJson.PROPERTY_COUNT, getElements().size());
+        return feature;
+    }
+
+    @Override
+    protected void getPixelPosition(double latitude, double longitude, Projection projection, double[] out) {
+        MercatorProjection p = ((HandlerMapboxGeoJson) m_handler).getMercatorProjection();
+        out[0] = p.getPixelX(MercatorProjection.getNormalizedX(longitude));
+        out[1] = p.getPixelY(MercatorProjection.getNormalizedY(latitude));
+    }
+
+    @Override
+    protected void getPixelPosition(int handle, Projection projection, double[] out) {
+        MercatorProjection p = ((HandlerMapboxGeoJson) m_handler).getMercatorProjection();
+        ElementStore store = m_handler.getStore();
+        out[0] = p.getPixelX(store.getX(handle));
+        out[1] = p.getPixelY(store.getY(handle));
+    }
+
+    @Override
+    protected void getPixelPositions(IntList handles, Projection projection, double[] out) {
+        m_handler.getStore().project(((HandlerMapboxGeoJson) m_handler).getMercatorProjection(), handles, out);
+    }
+
+    @Override
+    protected void getCenterPixelPosition(Projection projection, double[] out) {
+        MercatorProjection p = ((HandlerMapboxGeoJson) m_handler).getMercatorProjection();
+        out[0] = p.getPixelX(m_centerX);
+        out[1] = p.getPixelY(m_centerY);
+    }
+
+    @Override
+    protected void updateMarker() {
+        m_marker = createFeature();
+    }
+}
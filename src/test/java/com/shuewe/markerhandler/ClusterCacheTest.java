@@ -0,0 +1,176 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import com.shuewe.markerhandler.dummy.DummyData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Tests of ClusterCache and of the clustering of single zoom levels.
+ */
+public class ClusterCacheTest {
+
+    /**
+     * Handler with one element, used for the marker of the cached clusters.
+     */
+    private static final HandlerDummy HANDLER = new HandlerDummy(Collections.singletonList(new DummyData(new LatLng(45, 10))), null);
+
+    /**
+     * Creates the marker of one cluster of one element.
+     *
+     * @return list of marker
+     */
+    private static List<A_MapMarker> createMarker() {
+        IntList handles = new IntList();
+        handles.add(0);
+        A_MapMarker marker = HANDLER.getMarkerInstance();
+        marker.setElements(handles, new LatLng(45, 10));
+        return Collections.singletonList(marker);
+    }
+
+    /**
+     * Every element is in exactly one cluster, and within twice the distance of its center.
+     */
+    @Test
+    public void testCluster() {
+        Random random = new Random(1);
+        List<DummyData> elements = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            elements.add(new DummyData(new LatLng(45 + random.nextGaussian() * 2, 10 + random.nextGaussian() * 4)));
+        }
+        ElementStore store = new ElementStore(elements);
+        IntList handles = new IntList();
+        store.query(new LatLngBounds(new LatLng(50, 0), new LatLng(40, 20)), handles);
+        handles.sort();
+        double scale = 256 * Math.pow(2, 6);
+        double distance = 40;
+        ClusterCache.Entry entry = ClusterCache.cluster(store, handles, scale, distance, 6, null);
+        assertNotNull(entry);
+        assertEquals(6f, entry.getZoom());
+        boolean[] found = new boolean[store.size()];
+        int count = 0;
+        for (int c = 0; c < entry.size(); c++) {
+            IntList cluster = entry.getHandles(c);
+            assertEquals(entry.getSize(c), cluster.size());
+            LatLng center = entry.getCenter(c);
+            double cx = MercatorProjection.getNormalizedX(center.longitude) * scale;
+            double cy = MercatorProjection.getNormalizedY(center.latitude) * scale;
+            for (int i = 0; i < cluster.size(); i++) {
+                int h = cluster.get(i);
+                assertTrue(!found[h]);
+                found[h] = true;
+                count++;
+                double dx = store.getX(h) * scale - cx;
+                double dy = store.getY(h) * scale - cy;
+                assertTrue(Math.sqrt(dx * dx + dy * dy) <= 2 * distance);
+            }
+        }
+        assertEquals(handles.size(), count);
+    }
+
+    /**
+     * An entry from marker only stores the marker on the map.
+     */
+    @Test
+    public void testEntryFromMarker() {
+        List<DummyData> elements = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            elements.add(new DummyData(new LatLng(45 + i, 10)));
+        }
+        HandlerDummy handler = new HandlerDummy(elements, null);
+        List<A_MapMarker> marker = new ArrayList<>();
+        for (int m = 0; m < 3; m++) {
+            IntList handles = new IntList();
+            for (int h = 3 * m; h < 3 * m + 3; h++) {
+                handles.add(h);
+            }
+            A_MapMarker instance = handler.getMarkerInstance();
+            instance.setElements(handles, new LatLng(46 + 3 * m, 10));
+            marker.add(instance);
+        }
+        marker.add(handler.getMarkerInstance());
+        ClusterCache.Entry entry = new ClusterCache.Entry(5.5f, marker);
+        assertEquals(3, entry.size());
+        for (int c = 0; c < entry.size(); c++) {
+            assertEquals(3, entry.getSize(c));
+            assertEquals(3 * c + 1, entry.getHandles(c).get(1));
+            assertEquals(46.0 + 3 * c, entry.getCenter(c).latitude);
+        }
+    }
+
+    /**
+     * Entries are found by integer zoom level, but not for a lower zoom than they were computed for.
+     */
+    @Test
+    public void testGet() {
+        ClusterCache cache = new ClusterCache(ClusterCache.DEFAULT_MAX_BYTES);
+        cache.put(5.5f, createMarker(), cache.getVersion());
+        ClusterCache.Entry entry = cache.get(5.5f);
+        assertNotNull(entry);
+        assertSame(entry, cache.get(5.9f));
+        assertNull(cache.get(5.2f));
+        assertNull(cache.get(6f));
+        assertNull(cache.get(4.9f));
+        cache.put(5.1f, createMarker(), cache.getVersion());
+        assertNotNull(cache.get(5.2f));
+    }
+
+    /**
+     * Entries computed before invalidate are not stored.
+     */
+    @Test
+    public void testVersion() {
+        ClusterCache cache = new ClusterCache(ClusterCache.DEFAULT_MAX_BYTES);
+        int version = cache.getVersion();
+        cache.put(3, createMarker(), version);
+        cache.invalidate();
+        assertNull(cache.get(3));
+        cache.put(3, createMarker(), version);
+        assertNull(cache.get(3));
+        cache.put(3, createMarker(), cache.getVersion());
+        assertNotNull(cache.get(3));
+    }
+
+    /**
+     * The least recently used entries are evicted when the memory bound is exceeded.
+     */
+    @Test
+    public void testEviction() {
+        long bytes = new ClusterCache.Entry(0, createMarker()).getBytes();
+        ClusterCache cache = new ClusterCache(3 * bytes);
+        for (int z = 1; z <= 3; z++) {
+            cache.put(z, createMarker(), cache.getVersion());
+        }
+        assertNotNull(cache.get(1));
+        cache.put(4, createMarker(), cache.getVersion());
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(1));
+        cache.setMaxBytes(bytes);
+        assertEquals(bytes, cache.getMaxBytes());
+        assertNotNull(cache.get(1));
+        assertNull(cache.get(3));
+        assertNull(cache.get(4));
+        cache.clear();
+        assertNull(cache.get(1));
+    }
+}
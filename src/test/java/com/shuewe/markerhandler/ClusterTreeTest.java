@@ -0,0 +1,139 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import com.shuewe.markerhandler.dummy.DummyData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Tests of the hierarchical clustering of ClusterTree.
+ */
+public class ClusterTreeTest {
+
+    /**
+     * Min pixel distance of clusters.
+     */
+    private static final double RADIUS = 40;
+
+    /**
+     * Size of the world at zoom 0 in pixel.
+     */
+    private static final double TILE_SIZE = 256;
+
+    /**
+     * Bounds of the whole world.
+     */
+    private static final LatLngBounds WORLD = new LatLngBounds(new LatLng(90, -180), new LatLng(-90, 180));
+
+    /**
+     * Gets the cluster of every element at a zoom level and checks, that the clusters are a partition of all
+     * elements which are not removed.
+     *
+     * @param tree  to query
+     * @param store with the elements
+     * @param zoom  level
+     * @return index of the cluster by handle
+     */
+    private static int[] checkPartition(ClusterTree tree, ElementStore store, int zoom) {
+        int[] clusterOf = new int[store.size()];
+        Arrays.fill(clusterOf, -1);
+        IntList clusters = new IntList();
+        int level = tree.query(WORLD, zoom, clusters);
+        int count = 0;
+        for (int i = 0; i < clusters.size(); i++) {
+            IntList handles = tree.getHandles(level, clusters.get(i));
+            assertTrue(handles.size() > 0);
+            for (int k = 0; k < handles.size(); k++) {
+                int h = handles.get(k);
+                assertEquals("element in two clusters at zoom " + zoom, -1, clusterOf[h]);
+                assertTrue(!store.isRemoved(h));
+                clusterOf[h] = clusters.get(i);
+                count++;
+            }
+        }
+        assertEquals(store.getElementCount(), count);
+        return clusterOf;
+    }
+
+    /**
+     * On every zoom level each element is in exactly one cluster, and each cluster is the union of clusters of the
+     * next higher zoom level.
+     */
+    @Test
+    public void testPartitionAtEveryZoom() {
+        Random random = new Random(1);
+        List<DummyData> elements = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            elements.add(new DummyData(new LatLng(45 + random.nextGaussian() * 5, 10 + random.nextGaussian() * 10)));
+        }
+        for (int i = 0; i < 200; i++) {
+            elements.add(new DummyData(new LatLng(random.nextDouble() * 160 - 80, random.nextDouble() * 360 - 180)));
+        }
+        ElementStore store = new ElementStore(elements);
+        store.remove(7);
+        ClusterTree tree = new ClusterTree(store, RADIUS, TILE_SIZE);
+        int[] lower = checkPartition(tree, store, 0);
+        for (int z = 1; z <= ClusterTree.MAX_ZOOM + 1; z++) {
+            int[] upper = checkPartition(tree, store, z);
+            //Elements of one cluster at zoom z stay in one cluster at zoom z-1
+            int[] parent = new int[store.size()];
+            Arrays.fill(parent, -1);
+            for (int h = 0; h < store.size(); h++) {
+                if (upper[h] < 0) {
+                    continue;
+                }
+                if (parent[upper[h]] == -1) {
+                    parent[upper[h]] = lower[h];
+                }
+                assertEquals(parent[upper[h]], lower[h]);
+            }
+            lower = upper;
+        }
+        //Single elements above MAX_ZOOM
+        IntList clusters = new IntList();
+        int level = tree.query(WORLD, ClusterTree.MAX_ZOOM + 1, clusters);
+        assertEquals(store.getElementCount(), clusters.size());
+        for (int i = 0; i < clusters.size(); i++) {
+            assertEquals(1, tree.getHandles(level, clusters.get(i)).size());
+        }
+    }
+
+    /**
+     * Elements on both sides of the antimeridian are merged into one cluster with its center at the antimeridian,
+     * not in the middle of the world.
+     */
+    @Test
+    public void testAntimeridian() {
+        List<DummyData> elements = new ArrayList<>();
+        elements.add(new DummyData(new LatLng(0, 179.99)));
+        elements.add(new DummyData(new LatLng(0, -179.99)));
+        elements.add(new DummyData(new LatLng(0.01, 179.98)));
+        ElementStore store = new ElementStore(elements);
+        ClusterTree tree = new ClusterTree(store, RADIUS, TILE_SIZE);
+        for (int z = 0; z <= 10; z++) {
+            IntList clusters = new IntList();
+            int level = tree.query(WORLD, z, clusters);
+            assertEquals("zoom " + z, 1, clusters.size());
+            assertEquals(3, tree.getHandles(level, clusters.get(0)).size());
+            LatLng center = tree.getCenter(level, clusters.get(0));
+            assertTrue("zoom " + z + ": " + center, Math.abs(center.longitude) > 179.9);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import com.shuewe.markerhandler.dummy.DummyData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Tests of ElementStore, queries are compared with LatLngBounds.contains for every element.
+ */
+public class ElementStoreTest {
+
+    /**
+     * Creates elements spread over the whole world.
+     *
+     * @param seed of the random positions
+     * @param size number of elements
+     * @return elements
+     */
+    private static List<DummyData> createElements(long seed, int size) {
+        Random random = new Random(seed);
+        List<DummyData> ret = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            ret.add(new DummyData(new LatLng(random.nextDouble() * 160 - 80, random.nextDouble() * 360 - 180)));
+        }
+        return ret;
+    }
+
+    /**
+     * Queries the store and checks the result against all elements.
+     *
+     * @param store  to query
+     * @param bounds to look for elements
+     * @return number of found elements
+     */
+    private static int checkQuery(ElementStore store, LatLngBounds bounds) {
+        IntList expected = new IntList();
+        for (int h = 0; h < store.size(); h++) {
+            if (!store.isRemoved(h) && bounds.contains(store.getLatitude(h), store.getLongitude(h))) {
+                expected.add(h);
+            }
+        }
+        IntList result = new IntList();
+        store.query(bounds, result);
+        expected.sort();
+        result.sort();
+        assertEquals(expected.size(), result.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), result.get(i));
+        }
+        return result.size();
+    }
+
+    /**
+     * The handle of an element is its position in the list, the stored positions are the ones of the element.
+     */
+    @Test
+    public void testHandles() {
+        List<DummyData> elements = createElements(1, 1000);
+        ElementStore store = new ElementStore(elements);
+        assertEquals(1000, store.size());
+        assertEquals(1000, store.getElementCount());
+        for (int h = 0; h < elements.size(); h++) {
+            DummyData element = elements.get(h);
+            assertEquals(h, store.getHandle(element));
+            assertSame(element, store.getElement(h));
+            assertEquals(element.getLatLng().latitude, store.getLatitude(h));
+            assertEquals(element.getLatLng().longitude, store.getLongitude(h));
+            assertEquals(MercatorProjection.getNormalizedX(element.getLatLng().longitude), store.getX(h));
+            assertEquals(MercatorProjection.getNormalizedY(element.getLatLng().latitude), store.getY(h));
+        }
+        assertEquals(-1, store.getHandle(new DummyData(new LatLng(89, 0))));
+    }
+
+    /**
+     * query returns the elements within the bounds.
+     */
+    @Test
+    public void testQuery() {
+        ElementStore store = new ElementStore(createElements(2, 5000));
+        assertTrue(checkQuery(store, new LatLngBounds(new LatLng(50, 0), new LatLng(40, 20))) > 0);
+        assertEquals(5000, checkQuery(store, new LatLngBounds(new LatLng(85, -180), new LatLng(-85, 180))));
+    }
+
+    /**
+     * Bounds crossing the antimeridian return the elements on both sides of it.
+     */
+    @Test
+    public void testQueryAntimeridian() {
+        List<DummyData> elements = createElements(3, 5000);
+        elements.add(new DummyData(new LatLng(0, 179.5)));
+        elements.add(new DummyData(new LatLng(0, -179.5)));
+        ElementStore store = new ElementStore(elements);
+        LatLngBounds bounds = new LatLngBounds(new LatLng(10, 170), new LatLng(-10, -170));
+        assertTrue(checkQuery(store, bounds) >= 2);
+        IntList result = new IntList();
+        store.query(bounds, result);
+        assertTrue(result.indexOf(5000) >= 0);
+        assertTrue(result.indexOf(5001) >= 0);
+    }
+
+    /**
+     * Added elements are found by the next query, removed ones are not returned any more and keep their handle.
+     */
+    @Test
+    public void testAddAndRemove() {
+        ElementStore store = new ElementStore(createElements(4, 100));
+        LatLngBounds bounds = new LatLngBounds(new LatLng(85, -180), new LatLng(-85, 180));
+        checkQuery(store, bounds);
+        List<DummyData> added = createElements(5, 100);
+        for (int i = 0; i < added.size(); i++) {
+            assertEquals(100 + i, store.add(added.get(i)));
+        }
+        assertEquals(200, checkQuery(store, bounds));
+        assertTrue(store.remove(10));
+        assertFalse(store.remove(10));
+        assertTrue(store.isRemoved(10));
+        assertNull(store.getElement(10));
+        assertEquals(200, store.size());
+        assertEquals(199, store.getElementCount());
+        assertEquals(199, checkQuery(store, bounds));
+    }
+
+    /**
+     * Equal elements are stored once, in the constructor and by add.
+     */
+    @Test
+    public void testDuplicates() {
+        DummyData element = new DummyData(new LatLng(45, 10));
+        List<DummyData> elements = new ArrayList<>(Arrays.asList(element, new DummyData(new LatLng(46, 10)),
+                new DummyData(new LatLng(45, 10))));
+        ElementStore store = new ElementStore(elements);
+        assertEquals(3, store.size());
+        assertEquals(2, store.getElementCount());
+        assertEquals(0, store.getHandle(element));
+        assertTrue(store.isRemoved(2));
+        assertEquals(-1, store.add(new DummyData(new LatLng(45, 10))));
+        assertEquals(3, store.size());
+        assertEquals(2, checkQuery(store, new LatLngBounds(new LatLng(50, 0), new LatLng(40, 20))));
+        //A removed element can be added again, with a new handle
+        assertTrue(store.remove(0));
+        assertEquals(3, store.add(element));
+        assertEquals(3, store.getHandle(element));
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import android.util.DisplayMetrics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dummy implementation of A_Handler for test cases.
+ * The visible region has to be set by setVisibleRegion, the projection is not used.
+ */
+public class HandlerDummy extends A_Handler<Object, Object, Object, LatLngBounds, Object> {
+
+    /**
+     * Factor used to calculate dummy pixel positions. Larger factor -> larger pixel distance
+     */
+    public static float PIXEL_DISTANCE_FACTOR = 1;
+
+    /**
+     * Colors of marker.
+     */
+    private final Map<A_MapMarker.COLOR, Object> m_colorMap = new HashMap<>();
+
+    /**
+     * Simulated visible region, has to be set by setter method.
+     */
+    private LatLngBounds m_visibleRegion;
+
+    /**
+     * Public constructor.
+     *
+     * @param elements List of I_SortableMapElements to be displayed on map
+     * @param metrics  of device
+     */
+    public HandlerDummy(List<? extends I_SortableMapElement> elements, DisplayMetrics metrics) {
+        super(elements, metrics);
+    }
+
+    /**
+     * Setter for simulating the currently visible region.
+     *
+     * @param bounds which should be visible now
+     */
+    public void setVisibleRegion(LatLngBounds bounds) {
+        m_visibleRegion = bounds;
+    }
+
+    /**
+     * Updates the marker synchronously for the simulated visible region.
+     *
+     * @param zoom simulated zoom level
+     */
+    public void update(float zoom) {
+        updateMap(null, m_visibleRegion, zoom);
+        drawOnMap();
+    }
+
+    @Override
+    Map<A_MapMarker.COLOR, Object> getColorMap() {
+        return m_colorMap;
+    }
+
+    @Override
+    protected void updateSingleMarker(Object map, A_MapMarker m_marked) {
+
+    }
+
+    @Override
+    protected void registerClickListener() {
+
+    }
+
+    @Override
+    public void removeMarker(Object marker) {
+
+    }
+
+    @Override
+    public void showCurrentSortableMarker() {
+
+    }
+
+    @Override
+    protected A_MapMarker getMarkerInstance() {
+        return new MarkerDummy(this, m_textGenerator);
+    }
+
+    @Override
+    protected LatLngBounds getVisibleRegion(Object projection) {
+        return m_visibleRegion;
+    }
+
+    @Override
+    protected LatLngBounds toLatLngBounds(LatLngBounds bounds) {
+        return bounds;
+    }
+}
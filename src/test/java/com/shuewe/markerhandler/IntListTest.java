@@ -0,0 +1,99 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import org.junit.Test;
+
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * Tests of IntList.
+ */
+public class IntListTest {
+
+    /**
+     * Adding values grows the list beyond its initial capacity.
+     */
+    @Test
+    public void testAddAndGrow() {
+        IntList list = new IntList(0);
+        for (int i = 0; i < 100; i++) {
+            list.add(i * 2);
+        }
+        assertEquals(100, list.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 2, list.get(i));
+        }
+        list.set(5, -1);
+        assertEquals(-1, list.get(5));
+    }
+
+    /**
+     * indexOf finds the first occurrence, removeAt shifts the following values.
+     */
+    @Test
+    public void testIndexOfAndRemove() {
+        IntList list = new IntList();
+        list.add(3);
+        list.add(7);
+        list.add(3);
+        list.add(9);
+        assertEquals(0, list.indexOf(3));
+        assertEquals(-1, list.indexOf(4));
+        list.removeAt(0);
+        assertEquals(3, list.size());
+        assertEquals(7, list.get(0));
+        assertEquals(1, list.indexOf(3));
+        list.removeAt(2);
+        assertEquals(2, list.size());
+        assertEquals(-1, list.indexOf(9));
+    }
+
+    /**
+     * addAll appends all values, also if the capacity has to grow by more than twice.
+     */
+    @Test
+    public void testAddAll() {
+        IntList list = new IntList(1);
+        list.add(1);
+        IntList other = new IntList();
+        for (int i = 0; i < 50; i++) {
+            other.add(i);
+        }
+        list.addAll(other);
+        assertEquals(51, list.size());
+        assertEquals(1, list.get(0));
+        assertEquals(49, list.get(50));
+        assertEquals(50, other.size());
+    }
+
+    /**
+     * truncate, sort and clear only affect the used values.
+     */
+    @Test
+    public void testTruncateSortClear() {
+        IntList list = new IntList();
+        list.add(5);
+        list.add(1);
+        list.add(4);
+        list.add(0);
+        list.truncate(3);
+        list.sort();
+        assertEquals(3, list.size());
+        assertEquals(1, list.get(0));
+        assertEquals(4, list.get(1));
+        assertEquals(5, list.get(2));
+        list.clear();
+        assertEquals(0, list.size());
+        list.add(8);
+        assertEquals(8, list.get(0));
+    }
+}
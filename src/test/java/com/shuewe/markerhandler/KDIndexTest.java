@@ -0,0 +1,135 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Compares the queries of KDIndex with a linear scan over all points.
+ */
+public class KDIndexTest {
+
+    /**
+     * Number of points, enough for several levels of the tree.
+     */
+    private static final int SIZE = 5000;
+
+    /**
+     * Creates points in [0,1], with a cluster of equal coordinates to check ties in the sort.
+     *
+     * @param random generator
+     * @param x      array to fill
+     * @param y      array to fill
+     */
+    private static void createPoints(Random random, double[] x, double[] y) {
+        for (int i = 0; i < x.length; i++) {
+            if (i % 10 == 0) {
+                x[i] = 0.5;
+                y[i] = 0.25;
+            } else {
+                x[i] = random.nextDouble();
+                y[i] = random.nextDouble();
+            }
+        }
+    }
+
+    /**
+     * Gets the values of a list, sorted.
+     *
+     * @param list with values
+     * @return sorted array
+     */
+    private static int[] sorted(IntList list) {
+        list.sort();
+        int[] ret = new int[list.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = list.get(i);
+        }
+        return ret;
+    }
+
+    /**
+     * within has to return exactly the points within the distance, each once.
+     */
+    @Test
+    public void testWithinMatchesBruteForce() {
+        Random random = new Random(1);
+        double[] x = new double[SIZE];
+        double[] y = new double[SIZE];
+        createPoints(random, x, y);
+        KDIndex index = new KDIndex(x, y, SIZE);
+        assertEquals(SIZE, index.size());
+        for (int q = 0; q < 200; q++) {
+            double qx = q == 0 ? 0.5 : random.nextDouble();
+            double qy = q == 0 ? 0.25 : random.nextDouble();
+            double r = random.nextDouble() * (q % 2 == 0 ? 0.01 : 0.2);
+            IntList expected = new IntList();
+            for (int i = 0; i < SIZE; i++) {
+                double dx = x[i] - qx;
+                double dy = y[i] - qy;
+                if (dx * dx + dy * dy <= r * r) {
+                    expected.add(i);
+                }
+            }
+            IntList result = new IntList();
+            index.within(qx, qy, r, result);
+            assertTrue(Arrays.equals(sorted(expected), sorted(result)));
+        }
+    }
+
+    /**
+     * range has to return exactly the points within the rectangle, each once.
+     */
+    @Test
+    public void testRangeMatchesBruteForce() {
+        Random random = new Random(2);
+        double[] x = new double[SIZE];
+        double[] y = new double[SIZE];
+        createPoints(random, x, y);
+        KDIndex index = new KDIndex(x, y, SIZE);
+        for (int q = 0; q < 200; q++) {
+            double minX = random.nextDouble() * 0.9;
+            double minY = random.nextDouble() * 0.9;
+            double maxX = minX + random.nextDouble() * 0.1;
+            double maxY = minY + random.nextDouble() * 0.1;
+            IntList expected = new IntList();
+            for (int i = 0; i < SIZE; i++) {
+                if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY) {
+                    expected.add(i);
+                }
+            }
+            IntList result = new IntList();
+            index.range(minX, minY, maxX, maxY, result);
+            assertTrue(Arrays.equals(sorted(expected), sorted(result)));
+        }
+    }
+
+    /**
+     * Only the first size points are indexed, an empty index returns nothing.
+     */
+    @Test
+    public void testSize() {
+        double[] x = new double[]{0.1, 0.2, 0.3};
+        double[] y = new double[]{0.1, 0.2, 0.3};
+        IntList result = new IntList();
+        new KDIndex(x, y, 2).within(0.2, 0.2, 1, result);
+        assertTrue(Arrays.equals(new int[]{0, 1}, sorted(result)));
+        result.clear();
+        new KDIndex(x, y, 0).within(0.2, 0.2, 1, result);
+        assertEquals(0, result.size());
+    }
+}
@@ -11,16 +11,13 @@
 package com.shuewe.markerhandler;
 
 import com.shuewe.markerhandler.dummy.DummyData;
-import com.shuewe.markerhandler.dummy.HandlerDummy;
 
 import org.junit.Test;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 
 import static junit.framework.TestCase.assertEquals;
-import static junit.framework.TestCase.assertTrue;
 
 /**
  * Class with some test cases for the abstract classes.
@@ -28,7 +25,37 @@ import static junit.framework.TestCase.assertTrue;
 public class MapMarkerHandlerTest {
 
     /**
-     * Tests the estimation of visible elements on map. setVisibleElements is a helper method in the dummy implementation to set info which are normally given by the projection.
+     * Counts the marker on the map.
+     *
+     * @param handler marker handler
+     * @return number of marker on the map
+     */
+    private static int countMarker(A_Handler handler) {
+        int count = 0;
+        for (Object marker : handler.m_marker) {
+            if (((A_MapMarker) marker).isOnMap()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the elements represented by marker on the map.
+     *
+     * @param handler marker handler
+     * @return number of visible elements
+     */
+    private static int countElements(A_Handler handler) {
+        int count = 0;
+        for (Object marker : handler.m_marker) {
+            count += ((A_MapMarker) marker).getElements().size();
+        }
+        return count;
+    }
+
+    /**
+     * Tests the estimation of visible elements on map. setVisibleRegion is a helper method in the dummy implementation to set info which are normally given by the projection.
      */
     @Test
     public void testVisibleElements() {
@@ -37,23 +64,30 @@ public class MapMarkerHandlerTest {
         elements.add(new DummyData(new LatLng(44, 21)));
         elements.add(new DummyData(new LatLng(20, 2)));
         elements.add(new DummyData(new LatLng(15, 4)));
-        A_Handler handler = new HandlerDummy(elements, null);
+        HandlerDummy handler = new HandlerDummy(elements, null);
+        handler.setMarkerSpacing(5);
         HandlerDummy.PIXEL_DISTANCE_FACTOR = 1;
-        ((HandlerDummy) handler).setVisibleElements(new HashSet<>(elements.subList(1, 2)));
-        handler.updateMarkerOnMap(null, null, null, 0);
-        assertTrue(handler.m_elements_vis.size() == 1);
-        ((HandlerDummy) handler).setVisibleElements(new HashSet<>(elements.subList(0, 2)));
-        handler.updateMarkerOnMap(null, null, null, 0);
-        assertTrue(handler.m_elements_vis.size() == 2);
-        ((HandlerDummy) handler).setVisibleElements(new HashSet<>(elements.subList(0, 3)));
-        handler.updateMarkerOnMap(null, null, null, 0);
-        assertTrue(handler.m_elements_vis.size() == 3);
-        System.out.print(handler.m_marker.size());
+        handler.setVisibleRegion(new LatLngBounds(new LatLng(45, 20.5), new LatLng(43, 22)));
+        handler.update(0);
+        assertEquals(1, countElements(handler));
+        handler.setVisibleRegion(new LatLngBounds(new LatLng(45, 19), new LatLng(39, 22)));
+        handler.update(0);
+        assertEquals(2, countElements(handler));
+        handler.setVisibleRegion(new LatLngBounds(new LatLng(45, 1), new LatLng(19, 22)));
+        handler.update(0);
+        assertEquals(3, countElements(handler));
+        handler.setVisibleRegion(new LatLngBounds(new LatLng(45, 19), new LatLng(39, 22)));
+        handler.update(0);
+        assertEquals(2, countElements(handler));
+        //Pan, the elements of the hidden strips get removed
+        handler.setVisibleRegion(new LatLngBounds(new LatLng(41, 3), new LatLng(14, 20.5)));
+        handler.update(0);
+        assertEquals(2, countElements(handler));
     }
 
     /**
-     * Tests the clustering functions. For the dummy implementation the distance of two coordinates in pixel is simplified by
-     * sqrt((lat1-lat2)*(lat1-lat2) + (lng1-lng2)*(lng1-lng2))*factor. Zooming is simulated by changing 'factor' (HandlerDummy.PIXEL_DISTANCE_FACTOR).
+     * Tests the clustering functions. For the dummy implementation the pixel position of a coordinate is simplified by
+     * (lng, lat)*factor. Zooming is simulated by changing 'factor' (HandlerDummy.PIXEL_DISTANCE_FACTOR).
      */
     @Test
     public void testZooming() {
@@ -63,33 +97,32 @@ public class MapMarkerHandlerTest {
         elements.add(new DummyData(new LatLng(44, 21)));
         elements.add(new DummyData(new LatLng(20, 2)));
         elements.add(new DummyData(new LatLng(15, 4)));
-        A_Handler handler = new HandlerDummy(elements, null);
+        HandlerDummy handler = new HandlerDummy(elements, null);
+        handler.setMarkerSpacing(5);
+        handler.setVisibleRegion(new LatLngBounds(new LatLng(50, 0), new LatLng(10, 30))); //All elements are on the map
 
         //First three elements should be represented as one marker
         HandlerDummy.PIXEL_DISTANCE_FACTOR = 1;
-        ((HandlerDummy) handler).setVisibleElements(new HashSet<>(elements)); //All elements are on the map
-        handler.updateMarkerOnMap(null, null, null, 5);
-        assertTrue(handler.m_marker.size() == 3); //Checks the amount of markers on the map
-        assertEquals(handler.m_elements_vis.size(), elements.size()); //Checks if all elements are still represented by markers on the map
+        handler.update(5);
+        assertEquals(3, countMarker(handler)); //Checks the amount of markers on the map
+        assertEquals(elements.size(), countElements(handler)); //Checks if all elements are still represented by markers on the map
 
         //Zoom in. Factor gets increased, so all elements have a higher simulated distance and all should be displayed separately.
         HandlerDummy.PIXEL_DISTANCE_FACTOR = 10;
-        handler.updateMarkerOnMap(null, null, null, 6); //Have to change zoom, because otherwise zoom is not checked again
-        assertTrue(handler.m_marker.size() == 5);
-        assertEquals(handler.m_elements_vis.size(), elements.size());
+        handler.update(6); //Have to change zoom, because otherwise zoom is not checked again
+        assertEquals(5, countMarker(handler));
+        assertEquals(elements.size(), countElements(handler));
 
         //Zoom back to initial situation
         HandlerDummy.PIXEL_DISTANCE_FACTOR = 1;
-        handler.updateMarkerOnMap(null, null, null, 5);
-        assertTrue(handler.m_marker.size() == 3);
-        assertEquals(handler.m_elements_vis.size(), elements.size());
+        handler.update(5);
+        assertEquals(3, countMarker(handler));
+        assertEquals(elements.size(), countElements(handler));
 
         //Zoom out. Factor gets decreased, so all elements seems to be close to each other and should be displayed as one marker
         HandlerDummy.PIXEL_DISTANCE_FACTOR = 0.01f;
-        handler.updateMarkerOnMap(null, null, null, 4); //Have to change zoom, because otherwise zoom is not checked again
-        assertEquals(1, handler.m_marker.size());
-        assertEquals(handler.m_elements_vis.size(), elements.size());
-
-        System.out.print(handler.m_marker.size());
+        handler.update(4); //Have to change zoom, because otherwise zoom is not checked again
+        assertEquals(1, countMarker(handler));
+        assertEquals(elements.size(), countElements(handler));
     }
 }
@@ -0,0 +1,49 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+/**
+ * Dummy implementation of A_MapMarker.
+ * The pixel position of a coordinate is simplified to (longitude, latitude) * HandlerDummy.PIXEL_DISTANCE_FACTOR.
+ */
+public class MarkerDummy extends A_MapMarker<Object, Object, Object, Object> {
+
+    /**
+     * Public constructor.
+     *
+     * @param handler       marker handler instance
+     * @param textGenerator generator of the info text
+     */
+    public MarkerDummy(A_Handler handler, MarkerTextGenerator textGenerator) {
+        super(handler, textGenerator);
+    }
+
+    @Override
+    public A_MapMarker getInstance() {
+        return new MarkerDummy(m_handler, m_textGenerator);
+    }
+
+    @Override
+    public Object setMarker(Object map, COLOR c) {
+        return null;
+    }
+
+    @Override
+    protected void getPixelPosition(double latitude, double longitude, Object projection, double[] out) {
+        out[0] = longitude * HandlerDummy.PIXEL_DISTANCE_FACTOR;
+        out[1] = latitude * HandlerDummy.PIXEL_DISTANCE_FACTOR;
+    }
+
+    @Override
+    protected void updateMarker() {
+
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import com.shuewe.markerhandler.dummy.DummyData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Compares the lookups of MarkerGrid with a linear scan over all marker.
+ */
+public class MarkerGridTest {
+
+    /**
+     * Cell size and max distance of the lookups in pixel.
+     */
+    private static final double CELL_SIZE = 30;
+
+    /**
+     * Creates marker without elements.
+     *
+     * @param count number of marker
+     * @return marker
+     */
+    private static List<A_MapMarker> createMarker(int count) {
+        HandlerDummy handler = new HandlerDummy(new ArrayList<DummyData>(), null);
+        List<A_MapMarker> ret = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ret.add(handler.getMarkerInstance());
+        }
+        return ret;
+    }
+
+    /**
+     * findNearest and findWithin return the same marker as a linear scan, also after marker were moved and removed.
+     */
+    @Test
+    public void testLookupsMatchBruteForce() {
+        Random random = new Random(1);
+        List<A_MapMarker> marker = createMarker(500);
+        double[][] positions = new double[marker.size()][];
+        MarkerGrid grid = new MarkerGrid(CELL_SIZE);
+        for (int i = 0; i < marker.size(); i++) {
+            positions[i] = new double[]{random.nextDouble() * 1000 - 100, random.nextDouble() * 1000 - 100};
+            grid.put(marker.get(i), positions[i][0], positions[i][1]);
+        }
+        for (int i = 0; i < marker.size(); i += 3) {
+            positions[i] = new double[]{positions[i][0] + random.nextDouble() * 100, positions[i][1] - random.nextDouble() * 5};
+            grid.put(marker.get(i), positions[i][0], positions[i][1]);
+        }
+        for (int i = 1; i < marker.size(); i += 7) {
+            grid.remove(marker.get(i));
+            positions[i] = null;
+        }
+        for (int q = 0; q < 500; q++) {
+            double x = random.nextDouble() * 1000 - 100;
+            double y = random.nextDouble() * 1000 - 100;
+            A_MapMarker nearest = null;
+            double best = CELL_SIZE * CELL_SIZE;
+            HashSet<A_MapMarker> within = new HashSet<>();
+            for (int i = 0; i < marker.size(); i++) {
+                if (positions[i] == null) {
+                    continue;
+                }
+                double dx = positions[i][0] - x;
+                double dy = positions[i][1] - y;
+                double dist = dx * dx + dy * dy;
+                if (dist <= CELL_SIZE * CELL_SIZE) {
+                    within.add(marker.get(i));
+                }
+                if (dist <= best) {
+                    best = dist;
+                    nearest = marker.get(i);
+                }
+            }
+            assertSame(nearest, grid.findNearest(x, y, CELL_SIZE));
+            List<A_MapMarker> result = new ArrayList<>();
+            grid.findWithin(x, y, CELL_SIZE, result);
+            assertEquals(within.size(), result.size());
+            assertEquals(within, new HashSet<>(result));
+        }
+    }
+
+    /**
+     * getPosition returns the last position of a marker, removed marker are not found.
+     */
+    @Test
+    public void testPosition() {
+        List<A_MapMarker> marker = createMarker(1);
+        MarkerGrid grid = new MarkerGrid(CELL_SIZE);
+        double[] pos = new double[2];
+        assertFalse(grid.getPosition(marker.get(0), pos));
+        grid.put(marker.get(0), 10, 20);
+        grid.put(marker.get(0), 11, 21);
+        assertTrue(grid.getPosition(marker.get(0), pos));
+        assertEquals(11.0, pos[0]);
+        assertEquals(21.0, pos[1]);
+        grid.put(marker.get(0), 500, 500);
+        assertNull(grid.findNearest(11, 21, CELL_SIZE));
+        assertSame(marker.get(0), grid.findNearest(510, 490, CELL_SIZE));
+        grid.remove(marker.get(0));
+        assertFalse(grid.getPosition(marker.get(0), pos));
+        assertNull(grid.findNearest(500, 500, CELL_SIZE));
+    }
+}
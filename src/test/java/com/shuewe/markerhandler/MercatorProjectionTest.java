@@ -0,0 +1,147 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import org.junit.Test;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotSame;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Tests of MercatorProjection.
+ */
+public class MercatorProjectionTest {
+
+    /**
+     * Allowed error of pixel and degree values.
+     */
+    private static final double DELTA = 1e-6;
+
+    /**
+     * Checks that the region of a projection has the given corners.
+     *
+     * @param projection to check
+     * @param north      border
+     * @param west       border
+     * @param south      border
+     * @param east       border
+     */
+    private static void assertRegion(MercatorProjection projection, double north, double west, double south, double east) {
+        LatLngBounds bounds = projection.getVisibleRegion();
+        assertEquals(north, bounds.getNorthWest().latitude, DELTA);
+        assertEquals(west, bounds.getNorthWest().longitude, DELTA);
+        assertEquals(south, bounds.getSouthEast().latitude, DELTA);
+        assertEquals(east, bounds.getSouthEast().longitude, DELTA);
+    }
+
+    /**
+     * Normalized positions convert back to the same degrees.
+     */
+    @Test
+    public void testNormalized() {
+        assertEquals(0.0, MercatorProjection.getNormalizedX(-180), DELTA);
+        assertEquals(1.0, MercatorProjection.getNormalizedX(180), DELTA);
+        assertEquals(0.5, MercatorProjection.getNormalizedY(0), DELTA);
+        assertEquals(0.0, MercatorProjection.getNormalizedY(90), DELTA);
+        assertEquals(1.0, MercatorProjection.getNormalizedY(-90), DELTA);
+        for (double lat = -80; lat <= 80; lat += 10) {
+            assertEquals(lat, MercatorProjection.getLatitude(MercatorProjection.getNormalizedY(lat)), DELTA);
+        }
+        for (double lng = -180; lng <= 180; lng += 15) {
+            assertEquals(lng, MercatorProjection.getLongitude(MercatorProjection.getNormalizedX(lng)), DELTA);
+        }
+    }
+
+    /**
+     * The north west corner is mapped to pixel (0,0), the region fits into the area with the same scale in both
+     * directions.
+     */
+    @Test
+    public void testPixel() {
+        MercatorProjection projection = new MercatorProjection(1000, 500, new LatLng(50, 0), new LatLng(40, 20));
+        assertEquals(1000.0, projection.getWidth());
+        assertEquals(500.0, projection.getHeight());
+        MercatorProjection.Coordinates nw = projection.getCoordinates(new LatLng(50, 0));
+        MercatorProjection.Coordinates se = projection.getCoordinates(40, 20);
+        assertEquals(0.0, nw.getX(), DELTA);
+        assertEquals(0.0, nw.getY(), DELTA);
+        assertTrue(se.getX() <= 1000 + DELTA);
+        assertTrue(se.getY() <= 500 + DELTA);
+        assertTrue(Math.abs(se.getX() - 1000) < DELTA || Math.abs(se.getY() - 500) < DELTA);
+        double scale = se.getX() / (MercatorProjection.getNormalizedX(20) - MercatorProjection.getNormalizedX(0));
+        assertEquals(se.getY(), scale * (MercatorProjection.getNormalizedY(40) - MercatorProjection.getNormalizedY(50)), DELTA);
+    }
+
+    /**
+     * Positions east of the antimeridian are drawn right of the ones west of it.
+     */
+    @Test
+    public void testAntimeridian() {
+        MercatorProjection projection = new MercatorProjection(1000, 1000, new LatLng(10, 170), new LatLng(-10, -170));
+        double west = projection.getPixelX(MercatorProjection.getNormalizedX(175));
+        double east = projection.getPixelX(MercatorProjection.getNormalizedX(-175));
+        assertTrue(west > 0);
+        assertTrue(east > west);
+        assertTrue(east < 1000);
+        assertEquals(0.0, projection.getPixelX(MercatorProjection.getNormalizedX(170)), DELTA);
+    }
+
+    /**
+     * The batch projection returns the same pixel as the single one, NaN for negative indices.
+     */
+    @Test
+    public void testProject() {
+        MercatorProjection projection = new MercatorProjection(800, 600, new LatLng(10, 170), new LatLng(-10, -170));
+        double[] x = new double[]{MercatorProjection.getNormalizedX(171), MercatorProjection.getNormalizedX(-171)};
+        double[] y = new double[]{MercatorProjection.getNormalizedY(5), MercatorProjection.getNormalizedY(-5)};
+        IntList indices = new IntList();
+        indices.add(1);
+        indices.add(-1);
+        indices.add(0);
+        double[] out = new double[6];
+        projection.project(x, y, indices, out);
+        assertEquals(projection.getPixelX(x[1]), out[0], DELTA);
+        assertEquals(projection.getPixelY(y[1]), out[1], DELTA);
+        assertTrue(Double.isNaN(out[2]) && Double.isNaN(out[3]));
+        assertEquals(projection.getPixelX(x[0]), out[4], DELTA);
+        double[] range = new double[4];
+        projection.project(x, y, 0, 2, range);
+        assertEquals(out[4], range[0], DELTA);
+        assertEquals(out[5], range[1], DELTA);
+        assertEquals(out[0], range[2], DELTA);
+        assertEquals(out[1], range[3], DELTA);
+    }
+
+    /**
+     * Changing the region returns a new projection and keeps the original one.
+     */
+    @Test
+    public void testImmutable() {
+        MercatorProjection projection = new MercatorProjection(1000, 1000, new LatLng(50, 0), new LatLng(40, 20));
+        double pixel = projection.getPixelX(MercatorProjection.getNormalizedX(10));
+        MercatorProjection moved = projection.withNorthWestBorder(new LatLng(60, -10));
+        assertNotSame(projection, moved);
+        assertRegion(moved, 60, -10, 40, 20);
+        MercatorProjection resized = moved.withEastSouthBorder(new LatLng(30, 30));
+        assertNotSame(moved, resized);
+        assertRegion(resized, 60, -10, 30, 30);
+        MercatorProjection centered = projection.center();
+        assertNotSame(projection, centered);
+        assertEquals(1000.0, centered.getWidth());
+        assertEquals(1000.0, centered.getHeight());
+        assertTrue(centered.getVisibleRegion().contains(new LatLng(50, 0)));
+        assertTrue(centered.getVisibleRegion().contains(new LatLng(40, 20)));
+        assertRegion(projection, 50, 0, 40, 20);
+        assertRegion(moved, 60, -10, 40, 20);
+        assertEquals(pixel, projection.getPixelX(MercatorProjection.getNormalizedX(10)), DELTA);
+    }
+}
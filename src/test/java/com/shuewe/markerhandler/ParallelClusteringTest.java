@@ -0,0 +1,142 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import com.shuewe.markerhandler.dummy.DummyData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Compares the parallel clustering with the sequential clustering of updateMarker on a fixed dataset.
+ */
+public class ParallelClusteringTest {
+
+    /**
+     * Min pixel distance of the marker.
+     */
+    private static final int SPACING = 30;
+
+    /**
+     * Pixel per degree of the dummy projection, the visible region is 1000x500 pixel.
+     */
+    private static final float PIXEL_PER_DEGREE = 50;
+
+    /**
+     * Visible region.
+     */
+    private static final LatLngBounds BOUNDS = new LatLngBounds(new LatLng(50, 0), new LatLng(40, 20));
+
+    /**
+     * Creates a fixed dataset with a dense center and sparse borders.
+     *
+     * @param seed of the random positions
+     * @return elements
+     */
+    private static List<DummyData> createElements(long seed) {
+        Random random = new Random(seed);
+        List<DummyData> ret = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            ret.add(new DummyData(new LatLng(45 + random.nextGaussian() * 2, 10 + random.nextGaussian() * 4)));
+        }
+        return ret;
+    }
+
+    /**
+     * Creates a handler without map.
+     *
+     * @param elements of the handler
+     * @return handler
+     */
+    private static HandlerDummy createHandler(List<DummyData> elements) {
+        HandlerDummy handler = new HandlerDummy(elements, null);
+        handler.setMarkerSpacing(SPACING);
+        return handler;
+    }
+
+    /**
+     * Both clusterings have to put every visible element into exactly one marker, with about the same number of marker,
+     * no elements far away from their marker and no marker closer than half the spacing.
+     */
+    @Test
+    public void testParallelMatchesSerial() {
+        HandlerDummy.PIXEL_DISTANCE_FACTOR = PIXEL_PER_DEGREE;
+        for (long seed = 1; seed <= 4; seed++) {
+            List<DummyData> elements = createElements(seed);
+            HandlerDummy serial = createHandler(elements);
+            serial.updateMap(null, BOUNDS, 6);
+
+            HandlerDummy parallel = createHandler(elements);
+            IntList handles = new IntList();
+            parallel.getStore().query(BOUNDS, handles);
+            handles.sort();
+            ParallelClustering<Object> clustering = new ParallelClustering<>(parallel);
+            clustering.addElements(null, handles);
+            clustering.shutdown();
+
+            int serialCount = checkMarker(serial, handles);
+            int parallelCount = checkMarker(parallel, handles);
+            assertTrue("marker count " + parallelCount + " vs " + serialCount, Math.abs(parallelCount - serialCount) <= serialCount / 20);
+        }
+    }
+
+    /**
+     * Checks the marker of a handler.
+     *
+     * @param handler with clustered elements
+     * @param handles of the visible elements
+     * @return number of marker on the map
+     */
+    private static int checkMarker(HandlerDummy handler, IntList handles) {
+        int count = 0;
+        int elements = 0;
+        List<double[]> centers = new ArrayList<>();
+        double[] pos = new double[2];
+        for (A_MapMarker marker : handler.m_marker) {
+            if (!marker.isOnMap()) {
+                continue;
+            }
+            count++;
+            double[] center = new double[2];
+            marker.getCenterPixelPosition(null, center);
+            centers.add(center);
+            IntList markerHandles = marker.getHandles();
+            elements += markerHandles.size();
+            for (int i = 0; i < markerHandles.size(); i++) {
+                int h = markerHandles.get(i);
+                assertSame(marker, handler.m_elementMarker[h]);
+                marker.getPixelPosition(h, null, pos);
+                double dx = pos[0] - center[0];
+                double dy = pos[1] - center[1];
+                assertTrue(Math.sqrt(dx * dx + dy * dy) <= 2 * SPACING);
+            }
+        }
+        assertEquals(handles.size(), elements);
+        for (int i = 0; i < handles.size(); i++) {
+            assertTrue(handler.m_elementMarker[handles.get(i)] != null);
+        }
+        for (int i = 0; i < centers.size(); i++) {
+            for (int j = i + 1; j < centers.size(); j++) {
+                double dx = centers.get(i)[0] - centers.get(j)[0];
+                double dy = centers.get(i)[1] - centers.get(j)[1];
+                assertTrue(Math.sqrt(dx * dx + dy * dy) >= SPACING / 2.0);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Created by Stephan Hüwe on 18.11.2019.
+ * Email: shuewe87@gmail.com
+ * <p>
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ */
+
+package com.shuewe.markerhandler;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Tests of TileClusterCache.
+ */
+public class TileClusterCacheTest {
+
+    /**
+     * Creates an entry with one cluster of one element.
+     *
+     * @return entry
+     */
+    private static ClusterCache.Entry createEntry() {
+        return new ClusterCache.Entry(5, new double[]{45}, new double[]{10}, new int[]{0, 1}, new int[]{0});
+    }
+
+    /**
+     * Keys of different tiles differ, also for the highest zoom level.
+     */
+    @Test
+    public void testKeys() {
+        Set<Long> keys = new HashSet<>();
+        for (int z = 0; z <= 3; z++) {
+            int n = 1 << z;
+            for (int x = 0; x < n; x++) {
+                for (int y = 0; y < n; y++) {
+                    assertTrue(keys.add(TileClusterCache.getKey(z, x, y)));
+                }
+            }
+        }
+        int max = (1 << TileClusterCache.MAX_LEVEL) - 1;
+        assertTrue(keys.add(TileClusterCache.getKey(TileClusterCache.MAX_LEVEL, max, 0)));
+        assertTrue(keys.add(TileClusterCache.getKey(TileClusterCache.MAX_LEVEL, 0, max)));
+        assertTrue(keys.add(TileClusterCache.getKey(TileClusterCache.MAX_LEVEL, max, max)));
+    }
+
+    /**
+     * The least recently used tiles are evicted, when there are more tiles than allowed.
+     */
+    @Test
+    public void testEviction() {
+        TileClusterCache cache = new TileClusterCache(2);
+        assertTrue(cache.isEmpty());
+        long a = TileClusterCache.getKey(1, 0, 0);
+        long b = TileClusterCache.getKey(1, 1, 0);
+        long c = TileClusterCache.getKey(1, 0, 1);
+        cache.put(a, createEntry(), cache.getVersion());
+        cache.put(b, createEntry(), cache.getVersion());
+        assertNotNull(cache.get(a));
+        cache.put(c, createEntry(), cache.getVersion());
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(c));
+        cache.setMaxTiles(1);
+        assertNull(cache.get(a));
+        assertNotNull(cache.get(c));
+        cache.remove(c);
+        assertTrue(cache.isEmpty());
+    }
+
+    /**
+     * Tiles computed before invalidate are not stored.
+     */
+    @Test
+    public void testVersion() {
+        TileClusterCache cache = new TileClusterCache(TileClusterCache.DEFAULT_MAX_TILES);
+        long key = TileClusterCache.getKey(2, 1, 1);
+        int version = cache.getVersion();
+        cache.put(key, createEntry(), version);
+        assertFalse(cache.isEmpty());
+        cache.invalidate();
+        assertTrue(cache.isEmpty());
+        cache.put(key, createEntry(), version);
+        assertNull(cache.get(key));
+        cache.put(key, createEntry(), cache.getVersion());
+        assertNotNull(cache.get(key));
+        cache.clear();
+        assertEquals(true, cache.isEmpty());
+    }
+}